@@ -0,0 +1,215 @@
+package polygo;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* BatchRenderer renders saved PolyGo files to images from the command line, without a
+display, several files at a time. Run with:
+    java -cp PolyGo.jar polygo.PolyGo --batch [options] files or directories...
+(or with polygo.BatchRenderer as the main class). Directories are searched (with their subdirectories) for PolyGo files. Each image is
+written next to its PolyGo file, or in the output directory if one is given (keeping the
+relative paths of the files found in directories). Images that are newer than their PolyGo
+file are up to date and are skipped, unless -force is given (e.g., after changing the size). */
+public class BatchRenderer {
+    private static class Settings {
+        // Images are written to a file with this suffix, and renamed once complete.
+        static final String TEMPORARY_SUFFIX = ".part";
+        static final int DEFAULT_WIDTH = 1000;
+        static final int DEFAULT_HEIGHT = 1000;
+        static final String DEFAULT_FORMAT = "png";
+        static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    }
+
+    private int width = Settings.DEFAULT_WIDTH;
+    private int height = Settings.DEFAULT_HEIGHT;
+    private String format = Settings.DEFAULT_FORMAT;
+    private int compressionLevel = Settings.DEFAULT_COMPRESSION_LEVEL;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private File outputDir;
+    private boolean force;
+    // The PolyGo files to render, and the image file for each.
+    private final List<File> inputs = new ArrayList<File>();
+    private final List<File> outputs = new ArrayList<File>();
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BatchRenderer batch = new BatchRenderer();
+        try {
+            batch.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+        if (batch.run() > 0)
+            System.exit(1);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -cp PolyGo.jar polygo.PolyGo --batch [options] files or directories...");
+        System.err.println("  -size WIDTHxHEIGHT  size of the images (default " + Settings.DEFAULT_WIDTH + "x"
+            + Settings.DEFAULT_HEIGHT + ")");
+        System.err.println("  -format FORMAT      png, svg, pdf, or another ImageIO format (default "
+            + Settings.DEFAULT_FORMAT + ")");
+        System.err.println("  -compression LEVEL  PNG compression level, 1-9 (default " + Settings.DEFAULT_COMPRESSION_LEVEL + ")");
+        System.err.println("  -workers N          files rendered at a time (default: number of processors)");
+        System.err.println("  -out DIRECTORY      where to write the images (default: next to the PolyGo files)");
+        System.err.println("  -force              render even the images that are up to date");
+    }
+
+    private void parseArguments(String[] args) {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-force")) {
+                force = true;
+            } else if (arg.startsWith("-")) {
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                String value = args[++i];
+                if (arg.equals("-size")) {
+                    String[] size = value.toLowerCase().split("x");
+                    if (size.length != 2)
+                        throw new IllegalArgumentException("Size must be WIDTHxHEIGHT: " + value);
+                    width = parsePositive(size[0], arg);
+                    height = parsePositive(size[1], arg);
+                } else if (arg.equals("-format")) {
+                    format = value.toLowerCase();
+                } else if (arg.equals("-compression")) {
+                    compressionLevel = parsePositive(value, arg);
+                    if (compressionLevel > 9)
+                        throw new IllegalArgumentException("Compression level must be 1-9: " + value);
+                } else if (arg.equals("-workers")) {
+                    workers = parsePositive(value, arg);
+                } else if (arg.equals("-out")) {
+                    outputDir = new File(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.isEmpty())
+            throw new IllegalArgumentException("No PolyGo files given");
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isDirectory())
+                addDirectory(file, "");
+            else if (file.isFile())
+                addInput(file, "");
+            else
+                throw new IllegalArgumentException("No such file or directory: " + path);
+        }
+    }
+
+    private static int parsePositive(String value, String option) {
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number > 0)
+                return(number);
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+    }
+
+    /* Add the PolyGo files of a directory and its subdirectories, in name order. The relative
+    path is the path of the directory from the one given on the command line. */
+    private void addDirectory(File directory, String relativePath) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory())
+                addDirectory(file, relativePath + file.getName() + File.separator);
+            else if (file.getName().endsWith("." + FileHandling.POLYGO_FILE_EXTENSION))
+                addInput(file, relativePath);
+        }
+    }
+
+    private void addInput(File file, String relativePath) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String imageName = ((dot > 0) ? name.substring(0, dot) : name) + "." + format;
+        File output = (outputDir == null) ? new File(file.getParentFile(), imageName)
+            : new File(outputDir, relativePath + imageName);
+        inputs.add(file);
+        outputs.add(output);
+    }
+
+    /* Render all the files, printing the time taken for each and a summary. Returns the
+    number of files that failed. */
+    private int run() {
+        final AtomicInteger rendered = new AtomicInteger(), upToDate = new AtomicInteger(), failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PolyGo batch " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }});
+        long start = System.nanoTime();
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int i = 0; i < inputs.size(); i++) {
+            final File input = inputs.get(i), output = outputs.get(i);
+            results.add(executor.submit(new Runnable() {
+                @Override public void run() {
+                    if (!force && (output.lastModified() >= input.lastModified())) {
+                        upToDate.incrementAndGet();
+                        return;
+                    }
+                    long fileStart = System.nanoTime();
+                    File parent = output.getAbsoluteFile().getParentFile();
+                    // Written to a temporary file first, so that an image left incomplete (e.g., by
+                    // running out of memory) is never taken for an up to date one.
+                    File temporary = new File(parent, output.getName() + Settings.TEMPORARY_SUFFIX);
+                    try {
+                        DrawingScheme drawingScheme = FileHandling.readDrawingScheme(input);
+                        if (!parent.isDirectory() && !parent.mkdirs())
+                            throw new IOException("Cannot create " + parent);
+                        FileHandling.writeImage(drawingScheme.snapshot(), temporary, format, width, height, compressionLevel, null);
+                        if (!temporary.renameTo(output)) {
+                            output.delete();
+                            if (!temporary.renameTo(output))
+                                throw new IOException("Cannot rename " + temporary);
+                        }
+                        rendered.incrementAndGet();
+                        System.out.println(String.format("%s -> %s: %.1f ms", input, output,
+                            (System.nanoTime() - fileStart) / 1e6));
+                    } catch (Exception e) {
+                        fileFailed(input, temporary, e);
+                    } catch (OutOfMemoryError e) {  // e.g., an image too large to hold in memory
+                        fileFailed(input, temporary, e);
+                    }
+                }
+
+                private void fileFailed(File input, File temporary, Throwable error) {
+                    failed.incrementAndGet();
+                    temporary.delete();
+                    System.err.println(input + ": " + error);
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+            }
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d rendered, %d up to date, %d failed in %.2f s (%d workers): %.2f images/s, %.1f Mpixels/s",
+            rendered.get(), upToDate.get(), failed.get(), seconds, workers, rendered.get() / seconds,
+            rendered.get() * ((double)width * height) / 1e6 / seconds));
+        return(failed.get());
+    }
+}
@@ -0,0 +1,416 @@
+package polygo;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import polygo.Geometry.*;
+
+/**
+ * Micro-benchmarks for the performance-critical parts of PolyGo.
+ * Run with: java -cp PolyGo.jar polygo.Benchmark
+ */
+public class Benchmark {
+
+    private static class Settings {
+        // Canvas used for generating the benchmark patterns.
+        static final int CANVAS_WIDTH = 2000;
+        static final int CANVAS_HEIGHT = 2000;
+        static final int CANVAS_MARGIN = 10;
+        // Number of timed repetitions after warming up.
+        static final int WARMUP_ROUNDS = 200;
+        static final int ROUNDS = 500;
+        // Image size and repetitions for the rendering benchmarks.
+        static final int RENDER_SIZE = 4000;
+        static final int RENDER_WARMUP_ROUNDS = 2;
+        static final int RENDER_ROUNDS = 5;
+        // Repetitions for saving and opening PolyGo files.
+        static final int FILE_WARMUP_ROUNDS = 500;
+        static final int FILE_ROUNDS = 2000;
+        // Levels and repetitions for looking up the colors of the sides.
+        static final int COLOR_LEVELS = 1000;
+        static final int COLOR_WARMUP_ROUNDS = 200;
+        static final int COLOR_ROUNDS = 1000;
+    }
+
+    public static void main(String[] args) {
+        benchmarkFindNextPolygon();
+        benchmarkTiledRendering();
+        benchmarkPngEncoding();
+        benchmarkSchemeFiles();
+        benchmarkColorLookup();
+    }
+
+    /* Compare the vector-arithmetic findNextPolygon with the polar (trigonometric) formulation
+    it replaced, on a deep 20-sided pattern in both displacement modes. */
+    private static void benchmarkFindNextPolygon() {
+        System.out.println("findNextPolygon (20 sides, levels until the center is reached):");
+        for (DrawingScheme.DisplacementType displacementType : DrawingScheme.DisplacementType.values()) {
+            DrawingScheme drawingScheme = new DrawingScheme();
+            drawingScheme.numSidesChange(20);
+            if (displacementType == DrawingScheme.DisplacementType.FIXED)
+                drawingScheme.fixedDisplacementSelected();
+            drawingScheme.displacementChange(1);
+            SchemeSnapshot scheme = drawingScheme.snapshot();
+            NestedPolygonChain chain = new NestedPolygonChain();
+            NestedPolygonChain referenceChain = new NestedPolygonChain();
+            // Check that both versions give the same vertices.
+            generate(chain, scheme, false);
+            generate(referenceChain, scheme, true);
+            double maxError = 0;
+            int levels = Math.min(chain.levels(), referenceChain.levels());
+            for (int l = 0; l < levels; l++)
+                for (int v = 0; v < chain.sides(); v++)
+                    maxError = Math.max(maxError, Math.max(
+                        Math.abs(chain.getX(l, v) - referenceChain.getX(l, v)),
+                        Math.abs(chain.getY(l, v) - referenceChain.getY(l, v))));
+            for (int r = 0; r < Settings.WARMUP_ROUNDS; r++) {
+                generate(chain, scheme, false);
+                generate(referenceChain, scheme, true);
+            }
+            long referenceTime = 0, time = 0, start;
+            for (int r = 0; r < Settings.ROUNDS; r++) {
+                start = System.nanoTime();
+                generate(referenceChain, scheme, true);
+                referenceTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                generate(chain, scheme, false);
+                time += System.nanoTime() - start;
+            }
+            double levelCount = (double)Settings.ROUNDS * chain.levels();
+            System.out.println(String.format("  %-8s %5d levels: polar %7.1f ns/level, vector %7.1f ns/level (%.1fx), max difference %.2g px, level count %s",
+                displacementType, chain.levels(), referenceTime / levelCount, time / levelCount,
+                (double)referenceTime / time, maxError,
+                (chain.levels() == referenceChain.levels()) ? "equal" : "DIFFERENT"));
+        }
+    }
+
+    /* Render a deep 20-sided pattern with tiles on 1 to N threads, and compare the speed and
+    the pixels with rendering the whole image at once on the calling thread. */
+    private static void benchmarkTiledRendering() {
+        int size = Settings.RENDER_SIZE;
+        System.out.println("Tiled rendering (" + size + "x" + size + ", 20 sides, "
+            + Runtime.getRuntime().availableProcessors() + " processors):");
+        DrawingScheme drawingScheme = new DrawingScheme();
+        drawingScheme.numSidesChange(20);
+        drawingScheme.displacementChange(1);
+        drawingScheme.colorSchemeChange(DrawingScheme.ColorScheme.CUSTOM, DrawingScheme.PaletteType.FILL);
+        SchemeSnapshot scheme = drawingScheme.snapshot();
+        BufferedImage reference = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        PatternRenderer referenceRenderer = new PatternRenderer();
+        long referenceTime = 0, start;
+        for (int r = 0; r < Settings.RENDER_WARMUP_ROUNDS + Settings.RENDER_ROUNDS; r++) {
+            start = System.nanoTime();
+            Graphics2D g2 = reference.createGraphics();
+            referenceRenderer.render(scheme, size, size, g2);
+            g2.dispose();
+            if (r >= Settings.RENDER_WARMUP_ROUNDS)
+                referenceTime += System.nanoTime() - start;
+        }
+        System.out.println(String.format("  untiled    %8.1f ms", referenceTime / 1e6 / Settings.RENDER_ROUNDS));
+        int[] referencePixels = ((DataBufferInt)reference.getRaster().getDataBuffer()).getData();
+        int[] firstPixels = null;
+        long singleThreadTime = 0;
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads = (threads == maxThreads) ? threads + 1 : Math.min(2 * threads, maxThreads)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            PatternRenderer renderer = new PatternRenderer(null, pool);
+            long time = 0;
+            for (int r = 0; r < Settings.RENDER_WARMUP_ROUNDS + Settings.RENDER_ROUNDS; r++) {
+                start = System.nanoTime();
+                renderer.render(scheme, image);
+                if (r >= Settings.RENDER_WARMUP_ROUNDS)
+                    time += System.nanoTime() - start;
+            }
+            pool.shutdown();
+            if (firstPixels == null) {
+                firstPixels = pixels.clone();
+                singleThreadTime = time;
+            }
+            int differentPixels = 0;
+            for (int p = 0; p < pixels.length; p++)
+                if (pixels[p] != referencePixels[p])
+                    differentPixels++;
+            System.out.println(String.format("  %2d threads %8.1f ms (%.2fx), %s to 1 thread, %d pixels differ from untiled",
+                threads, time / 1e6 / Settings.RENDER_ROUNDS, (double)singleThreadTime / time,
+                Arrays.equals(pixels, firstPixels) ? "identical" : "NOT IDENTICAL", differentPixels));
+        }
+    }
+
+    /* Encode a rendered pattern as PNG with ImageIO and with PngEncoder, at several compression
+    levels and on 1 to N threads, and compare the throughput (of uncompressed image data) and
+    the size of the files. */
+    private static void benchmarkPngEncoding() {
+        int size = Settings.RENDER_SIZE;
+        System.out.println("PNG encoding (" + size + "x" + size + ", " + Runtime.getRuntime().availableProcessors() + " processors):");
+        DrawingScheme drawingScheme = new DrawingScheme();
+        drawingScheme.numSidesChange(20);
+        drawingScheme.displacementChange(1);
+        drawingScheme.colorSchemeChange(DrawingScheme.ColorScheme.CUSTOM, DrawingScheme.PaletteType.FILL);
+        BufferedImage image = new PatternRenderer().render(drawingScheme.snapshot(), size, size);
+        double megabytes = size * (1 + 3.0 * size) / 1e6;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            ImageIO.write(image, "png", out);
+            long time = System.nanoTime() - start;
+            System.out.println(String.format("  ImageIO             %8.1f ms %7.1f MB/s %10d bytes",
+                time / 1e6, megabytes / (time / 1e9), out.size()));
+            int maxThreads = Runtime.getRuntime().availableProcessors();
+            for (int level : new int[] {1, 6, 9}) {
+                byte[] first = null;
+                for (int threads = 1; threads <= maxThreads; threads = (threads == maxThreads) ? threads + 1 : Math.min(2 * threads, maxThreads)) {
+                    ForkJoinPool pool = new ForkJoinPool(threads);
+                    time = 0;
+                    for (int r = 0; r < Settings.RENDER_WARMUP_ROUNDS + Settings.RENDER_ROUNDS; r++) {
+                        out.reset();
+                        start = System.nanoTime();
+                        PngEncoder encoder = new PngEncoder(out, size, size, level, pool, null);
+                        for (int bandY = 0; bandY < size; bandY += PatternRenderer.RenderParameters.BAND_HEIGHT) {
+                            int rows = Math.min(PatternRenderer.RenderParameters.BAND_HEIGHT, size - bandY);
+                            encoder.writeRows(image.getSubimage(0, bandY, size, rows), rows);
+                        }
+                        encoder.finish();
+                        if (r >= Settings.RENDER_WARMUP_ROUNDS)
+                            time += System.nanoTime() - start;
+                    }
+                    pool.shutdown();
+                    time /= Settings.RENDER_ROUNDS;
+                    byte[] bytes = out.toByteArray();
+                    if (first == null)
+                        first = bytes;
+                    System.out.println(String.format("  level %d, %2d threads %8.1f ms %7.1f MB/s %10d bytes, %s to 1 thread",
+                        level, threads, time / 1e6, megabytes / (time / 1e9), bytes.length,
+                        Arrays.equals(bytes, first) ? "identical" : "NOT IDENTICAL"));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Save and open a 20-sided PolyGo file with Java serialization (the format of earlier
+    versions), in the binary format and as JSON, and compare the time taken and the size. */
+    private static void benchmarkSchemeFiles() {
+        System.out.println("PolyGo files (20 sides, custom colors):");
+        final DrawingScheme drawingScheme = new DrawingScheme();
+        drawingScheme.numSidesChange(20);
+        drawingScheme.colorSchemeChange(DrawingScheme.ColorScheme.CUSTOM, DrawingScheme.PaletteType.FILL);
+        try {
+            final File file = File.createTempFile("benchmark", "." + FileHandling.POLYGO_FILE_EXTENSION);
+            file.deleteOnExit();
+            String[] formats = {"serialization", "binary", "JSON"};
+            for (int f = 0; f < formats.length; f++) {
+                long saveTime = 0, openTime = 0, start;
+                DrawingScheme opened = null;
+                for (int r = 0; r < Settings.FILE_WARMUP_ROUNDS + Settings.FILE_ROUNDS; r++) {
+                    start = System.nanoTime();
+                    if (f == 0) {
+                        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                        out.writeObject(drawingScheme);
+                        out.close();
+                    } else if (f == 1) {
+                        SchemeFormat.write(drawingScheme, file);
+                    } else {
+                        SchemeFormat.writeJson(drawingScheme, file);
+                    }
+                    long saved = System.nanoTime();
+                    if (f == 0) {
+                        // The way files were opened before.
+                        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+                        opened = (DrawingScheme)in.readObject();
+                        in.close();
+                    } else {
+                        opened = SchemeFormat.read(file);
+                    }
+                    if (r >= Settings.FILE_WARMUP_ROUNDS) {
+                        saveTime += saved - start;
+                        openTime += System.nanoTime() - saved;
+                    }
+                }
+                System.out.println(String.format("  %-13s save %7.1f us, open %7.1f us, %5d bytes, %s",
+                    formats[f], saveTime / 1e3 / Settings.FILE_ROUNDS, openTime / 1e3 / Settings.FILE_ROUNDS,
+                    file.length(), drawingScheme.fingerprint().equals(opened.fingerprint()) ? "same pattern" : "DIFFERENT PATTERN"));
+            }
+            file.delete();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Look up the color of every side of many levels of a 20-sided pattern, in each color
+    scheme: by working it out from the color scheme, as the renderers did, and from the color
+    tables of the drawing scheme, as they do now, stepping through the period. */
+    private static void benchmarkColorLookup() {
+        System.out.println("Color lookup (20 sides, " + Settings.COLOR_LEVELS + " levels, lines and fills):");
+        for (DrawingScheme.ColorScheme colorScheme : DrawingScheme.ColorScheme.values()) {
+            DrawingScheme drawingScheme = new DrawingScheme();
+            drawingScheme.numSidesChange(20);
+            drawingScheme.colorSchemeChange(colorScheme, DrawingScheme.PaletteType.LINE);
+            drawingScheme.colorSchemeChange(colorScheme, DrawingScheme.PaletteType.FILL);
+            if (colorScheme == DrawingScheme.ColorScheme.CUSTOM) { // 7 colors, against 20 sides
+                for (int c = drawingScheme.lineColors.size(); c < 7; c++) {
+                    drawingScheme.addLineColor();
+                    drawingScheme.addFillColor();
+                }
+            }
+            SchemeSnapshot scheme = drawingScheme.snapshot();
+            // Check that both give the same colors.
+            boolean equal = (lookUpColors(scheme, false) == lookUpColors(scheme, true));
+            for (int r = 0; r < Settings.COLOR_WARMUP_ROUNDS; r++) {
+                lookUpColors(scheme, false);
+                lookUpColors(scheme, true);
+            }
+            long referenceTime = 0, time = 0, start;
+            for (int r = 0; r < Settings.COLOR_ROUNDS; r++) {
+                start = System.nanoTime();
+                lookUpColors(scheme, false);
+                referenceTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                lookUpColors(scheme, true);
+                time += System.nanoTime() - start;
+            }
+            double lookups = 2.0 * Settings.COLOR_ROUNDS * Settings.COLOR_LEVELS * drawingScheme.numSides;
+            System.out.println(String.format("  %-22s by scheme %5.2f ns/side, by table %5.2f ns/side (%.1fx), colors %s",
+                colorScheme, referenceTime / lookups, time / lookups, (double)referenceTime / time,
+                equal ? "equal" : "DIFFERENT"));
+        }
+    }
+
+    /* Look up the line and fill colors of every side, and return a checksum of them. */
+    private static long lookUpColors(SchemeSnapshot drawingScheme, boolean table) {
+        long checksum = 0;
+        int numSides = drawingScheme.numSides;
+        Color color;
+        if (!table) {
+            for (int iteration = 0; iteration < Settings.COLOR_LEVELS; iteration++) {
+                for (int s = 0; s < numSides; s++) {
+                    color = lineColorByScheme(drawingScheme, iteration, s);
+                    checksum = 31 * checksum + ((color == null) ? 0 : color.getRGB());
+                    checksum = 31 * checksum + fillColorByScheme(drawingScheme, iteration, s).getRGB();
+                }
+            }
+            return(checksum);
+        }
+        DrawingScheme.ColorTable lines = drawingScheme.getLineColorTable();
+        DrawingScheme.ColorTable fills = drawingScheme.getFillColorTable();
+        int lineEntry, fillEntry;
+        for (int iteration = 0; iteration < Settings.COLOR_LEVELS; iteration++) {
+            lineEntry = lines.isEmpty() ? 0 : lines.start(iteration);
+            fillEntry = fills.start(iteration);
+            for (int s = 0; s < numSides; s++) {
+                if (lines.isEmpty()) {
+                    checksum = 31 * checksum;
+                } else {
+                    checksum = 31 * checksum + lines.argb[lineEntry];
+                    if (++lineEntry == lines.period())
+                        lineEntry = 0;
+                }
+                checksum = 31 * checksum + fills.argb[fillEntry];
+                if (++fillEntry == fills.period())
+                    fillEntry = 0;
+            }
+        }
+        return(checksum);
+    }
+
+    /* The colors of the sides as the renderers used to work them out for every side, kept
+    as a reference. */
+    private static Color lineColorByScheme(SchemeSnapshot drawingScheme, int iteration, int side) {
+        switch (drawingScheme.lineColorScheme) {
+            case ONE_COLOR:
+                return(drawingScheme.lineColors.get(0));
+            case ONE_SIDE_ONE_COLOR:
+                return(drawingScheme.lineColors.get(side));
+            case ONE_POLYGON_ONE_COLOR:
+                return(drawingScheme.lineColors.get(iteration % drawingScheme.lineColors.size()));
+            case CUSTOM:
+                return(drawingScheme.lineColors.get((iteration * drawingScheme.numSides + side) % drawingScheme.lineColors.size()));
+            default: // none
+                return(null);
+        }
+    }
+
+    private static Color fillColorByScheme(SchemeSnapshot drawingScheme, int iteration, int side) {
+        switch (drawingScheme.fillColorScheme) {
+            case ONE_COLOR:
+                return(drawingScheme.fillColors.get(0));
+            case ONE_SIDE_ONE_COLOR:
+                return(drawingScheme.fillColors.get(side));
+            case ONE_POLYGON_ONE_COLOR:
+                return(drawingScheme.fillColors.get(iteration % drawingScheme.fillColors.size()));
+            case CUSTOM:
+                return(drawingScheme.fillColors.get((iteration * drawingScheme.numSides + side) % drawingScheme.fillColors.size()));
+            default: // none
+                return(drawingScheme.backgroundColor);
+        }
+    }
+
+    /* Generate all the levels of the pattern, like Pattern does. */
+    private static void generate(NestedPolygonChain chain, SchemeSnapshot drawingScheme, boolean polar) {
+        drawingScheme.scaleBasePolygon(new Dimension(Settings.CANVAS_WIDTH, Settings.CANVAS_HEIGHT),
+            Settings.CANVAS_MARGIN, chain);
+        boolean found = true;
+        while (found) {
+            if (polar)
+                found = findNextPolygonPolar(chain, drawingScheme, 0.1);
+            else
+                found = Geometry.findNextPolygon(chain, drawingScheme, 0.1);
+        }
+    }
+
+    /* The original formulation of Geometry.findNextPolygon, kept as a reference: the
+    orientation of each side (atan2), its length (sqrt) and a polar offset (cos/sin). */
+    private static boolean findNextPolygonPolar(NestedPolygonChain chain, SchemeSnapshot drawingScheme, double minDisplacement) {
+        int numVertices = drawingScheme.numSides;
+        int level = chain.levels() - 1;
+        int nextLevel = chain.addLevel();
+        double orientation, sideLength, dist;
+        double currentX, currentY, nextX, nextY, newX, newY;
+        double maxVertexDistance = 0;
+        int nextV;
+        for (int v = 0; v < numVertices; v++) {
+            currentX = chain.getX(level, v);
+            currentY = chain.getY(level, v);
+            if (drawingScheme.direction == DrawingScheme.Direction.CLOCKWISE)
+                nextV = (v + 1) % numVertices;
+            else
+                nextV = (v - 1 + numVertices) % numVertices;
+            nextX = chain.getX(level, nextV);
+            nextY = chain.getY(level, nextV);
+            orientation = Math.toDegrees(Math.atan2(nextY - currentY, nextX - currentX));
+            sideLength = Math.sqrt(Math.pow(currentX - nextX, 2) + Math.pow(currentY - nextY, 2));
+            if (drawingScheme.displacementType == DrawingScheme.DisplacementType.RELATIVE) {
+                dist = sideLength * drawingScheme.displacement / 100;
+            } else {
+                if (drawingScheme.displacement >= sideLength - 1) {
+                    chain.numLevels--;
+                    return(false);
+                }
+                dist = drawingScheme.displacement;
+            }
+            newX = currentX + dist * Math.cos(Math.toRadians(orientation));
+            newY = currentY + dist * Math.sin(Math.toRadians(orientation));
+            maxVertexDistance = Math.max(maxVertexDistance,
+                Math.sqrt(Math.pow(currentX - newX, 2) + Math.pow(currentY - newY, 2)));
+            chain.set(nextLevel, v, newX, newY);
+        }
+        if (maxVertexDistance < minDisplacement) {
+            chain.numLevels--;
+            return(false);
+        }
+        return(true);
+    }
+}
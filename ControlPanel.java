@@ -794,7 +794,7 @@ public class ControlPanel extends JPanel {
     /* Create a new panel of line or fill color buttons. */
     private JPanel createColorButtonPanel(DrawingScheme.PaletteType paletteType) {
         JPanel colorButtonPanel = new JPanel();
-        ArrayList<Color> buttonColors = new ArrayList();        
+        java.util.List<Color> buttonColors = new ArrayList<Color>();
         DrawingScheme.ColorScheme colorScheme = DrawingScheme.ColorScheme.NONE;
         if (paletteType == DrawingScheme.PaletteType.LINE) {
             buttonColors = drawingScheme.lineColors;
@@ -1,12 +1,24 @@
 package polygo;
 import java.awt.*;
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
 import polygo.Geometry.*;
 
 /* DrawingScheme is a data structure outlining how the pattern should be drawn.
 It is used by the control panel to arrange the GUI and draw the pattern. */
 public class DrawingScheme implements Serializable {
+    // Fixed to the value of the original release, so that saved files remain readable
+    // when methods or transient fields are added.
+    private static final long serialVersionUID = 8907673946777292906L;
+    // Source of version numbers: every modification of any drawing scheme gets a new,
+    // larger number, so renderers can tell whether a scheme changed since they last drew it.
+    private static long versionCounter = 0;
+    // Version of this drawing scheme (not saved to file), and the version of its last change
+    // that moved the shapes of the pattern, rather than just their colors.
+    transient long version;
+    transient long geometryVersion;
+    // The last snapshot taken, returned again until the scheme changes.
+    private transient SchemeSnapshot snapshot;
     // Number of sides in each polygon.
     int numSides;
     // Rotation of the base (most exterior) polygon.
@@ -47,12 +59,15 @@ public class DrawingScheme implements Serializable {
             return("None"); } };
     }
     // Line attributes: color and length.
+    // The lists of colors, like the angles and the base polygon, are never changed in place:
+    // a change replaces them with a changed copy, so they can be shared with snapshots (and
+    // with the schemes they were copied to) that are still in use.
     ColorScheme lineColorScheme;
-    ArrayList<Color> lineColors;
+    java.util.List<Color> lineColors;
     int lineWidth;
     // Fill colors: space between polygons, background, and inner space when nesting is finite.
     ColorScheme fillColorScheme;
-    ArrayList<Color> fillColors;
+    java.util.List<Color> fillColors;
     Color backgroundColor;
     boolean innerFill;
     Color innerFillColor;
@@ -104,15 +119,22 @@ public class DrawingScheme implements Serializable {
         // no need to limit iterations, will likely reach the center before hitting this limit
         static final int MAX_ITERATIONS = 9999;
         static final int MAX_LINE_WIDTH = 20;
+        // Displacements start at 1 (percent or pixel), since 0 would never reach the center.
+        static final int MIN_DISPLACEMENT = 1;
 
+        /* Largest displacement of the given type. */
+        static int maxDisplacement(DisplacementType displacementType) {
+            return((displacementType == DisplacementType.RELATIVE) ? MAX_DISPLACEMENT_PERCENT : MAX_DISPLACEMENT_PIXELS);
+        }
     }
     
     public DrawingScheme() {
         newDrawingScheme();
     }
-    
+
     public void newDrawingScheme() {
         /* assign default values to class variables. */
+        geometryModified();
         numSides = DefaultValues.NUM_SIDES;
         rotation = DefaultValues.ROTATION;
         createBasePolygon();
@@ -138,8 +160,10 @@ public class DrawingScheme implements Serializable {
         innerFillColor = DefaultValues.INNER_FILL_COLOR;
     } // DrawingScheme initialization
 
-    /* Copy all the fields from another drawing scheme (e.g., loaded from a file) */
+    /* Copy all the fields from another drawing scheme (e.g., loaded from a file). The colors,
+    angles and base polygon are shared, which is safe since neither scheme changes them in place. */
     public void copyDrawingScheme(DrawingScheme newDrawingScheme) {
+        geometryModified();
         basePolygon = newDrawingScheme.basePolygon;
         numSides = newDrawingScheme.numSides;
         rotation = newDrawingScheme.rotation;
@@ -159,6 +183,136 @@ public class DrawingScheme implements Serializable {
         innerFillColor = newDrawingScheme.innerFillColor;
     }
     
+    /* Mark the drawing scheme as modified by giving it a new version number. */
+    private void modified() {
+        synchronized (DrawingScheme.class) {
+            version = ++versionCounter;
+        }
+    }
+
+    /* Mark the drawing scheme as modified in a way that changes the shapes of the pattern. */
+    private void geometryModified() {
+        modified();
+        geometryVersion = version;
+    }
+
+    /* An immutable copy of the drawing scheme as it is now, which render threads and caches
+    can use while the scheme goes on changing. Until the scheme changes again, the same
+    snapshot is returned; a new one shares whatever did not change with the one before. Call
+    on the thread that changes the scheme. */
+    public SchemeSnapshot snapshot() {
+        SchemeSnapshot last = snapshot;
+        if ((last == null) || (last.version != version)) {
+            last = new SchemeSnapshot(this, last);
+            snapshot = last;
+        }
+        return(last);
+    }
+
+    /* Current version number. It changes whenever any field of the scheme changes. */
+    public long getVersion() {
+        return version;
+    }
+
+    /* Version number of the shapes of the pattern. It changes with the fields that move the
+    polygons or their outlines, but not with the colors, so a pattern with the same geometry
+    version can be recolored without generating it again. */
+    public long getGeometryVersion() {
+        return geometryVersion;
+    }
+
+    /* Colors of the sides of all the levels of the pattern, for lines or fills, compiled from
+    a color scheme. Counting the sides of all the levels in the order they are drawn, every
+    color scheme repeats after a whole number of sides, its period: 1 for one color, the number
+    of sides for one color per side, the number of sides times the number of colors for one
+    color per polygon, and the number of colors for custom. The table holds one period, so the
+    color of side s of the polygon of the given iteration is entry (iteration * numSides + s)
+    modulo the period, and the sides of a level are consecutive entries. */
+    static final class ColorTable {
+        final int numSides;
+        // Colors in the order they are drawn (the order of the palette, which decides which
+        // color is on top where shapes overlap).
+        final Color[] palette;
+        // For each entry of the period, the position of its color in the palette (the first,
+        // if the palette holds it more than once), and the color as ARGB.
+        final int[] paletteIndex;
+        final int[] argb;
+        // Whether all the sides of each level have the same color.
+        final boolean levelColors;
+
+        /* Compile a color scheme and its colors. The background is the fill color of the NONE
+        scheme (and null for lines, which are not drawn then). */
+        ColorTable(ColorScheme colorScheme, java.util.List<Color> colors, Color background, int numSides) {
+            this.numSides = numSides;
+            int numColors = colors.size();
+            if (colorScheme == ColorScheme.NONE) {
+                palette = colors.toArray(new Color[numColors + ((background == null) ? 0 : 1)]);
+                if (background != null)
+                    palette[numColors] = background;
+            } else {
+                palette = colors.toArray(new Color[numColors]);
+            }
+            int period;
+            switch (colorScheme) {
+                case ONE_COLOR: period = 1; break;
+                case ONE_SIDE_ONE_COLOR: period = numSides; break;
+                case ONE_POLYGON_ONE_COLOR: period = numSides * numColors; break;
+                case CUSTOM: period = numColors; break;
+                default: period = (background == null) ? 0 : 1; break; // none
+            }
+            paletteIndex = new int[period];
+            argb = new int[period];
+            Color color;
+            for (int e = 0; e < period; e++) {
+                switch (colorScheme) {
+                    case ONE_COLOR: color = colors.get(0); break;
+                    case ONE_SIDE_ONE_COLOR: color = colors.get(e); break;
+                    case ONE_POLYGON_ONE_COLOR: color = colors.get(e / numSides); break;
+                    case CUSTOM: color = colors.get(e); break;
+                    default: color = background; break;
+                }
+                paletteIndex[e] = Arrays.asList(palette).indexOf(color);
+                argb[e] = color.getRGB();
+            }
+            levelColors = (colorScheme == ColorScheme.ONE_COLOR) || (colorScheme == ColorScheme.ONE_POLYGON_ONE_COLOR)
+                || (colorScheme == ColorScheme.NONE);
+        }
+
+        /* Whether there are no colors (outlines that are not drawn). */
+        boolean isEmpty() {
+            return(argb.length == 0);
+        }
+
+        int period() {
+            return(argb.length);
+        }
+
+        /* Entry of the first side of the polygon of the given iteration. The next sides follow,
+        wrapping around at the end of the period. */
+        int start(int iteration) {
+            return((int)((long)iteration * numSides % argb.length));
+        }
+
+        /* Color of a side of the polygon of the given iteration, or null if there are no colors. */
+        Color color(int iteration, int side) {
+            if (isEmpty())
+                return(null);
+            return(palette[paletteIndex[(start(iteration) + side) % argb.length]]);
+        }
+    }
+
+    /* Fingerprint of the pattern as it is now (see SchemeSnapshot.fingerprint). Call on the
+    thread that changes the scheme. */
+    public String fingerprint() {
+        return(snapshot().fingerprint());
+    }
+
+    /* A scheme read from a file is treated as a new modification. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        geometryModified();
+    }
+
     /* create the base polygon as a regular polygon with /numSides/ sides,
     rotated by /rotation/ degrees. */
     private void createBasePolygon() {
@@ -202,6 +356,7 @@ public class DrawingScheme implements Serializable {
 
     /* Change in number of sides - Requires updating angles and colors. */
     protected void numSidesChange (int newNumSides) {
+        geometryModified();
         numSides = newNumSides;
         rotation = 0;
         createBasePolygon();
@@ -211,6 +366,7 @@ public class DrawingScheme implements Serializable {
 
     /* change in the rotation of the base polygon */
     protected void rotationChange(int newRotation) {
+        geometryModified();
         int rotationDegrees = newRotation - rotation;
         rotation = newRotation;
         rotateBasePolygon(rotationDegrees);
@@ -225,57 +381,67 @@ public class DrawingScheme implements Serializable {
             newBasePolygon = Geometry.stretchPolygon(basePolygon, 100d / ((double)(100 + Limits.STRETCH_PERCENT)));
         }
         // Has to be checked for validity to make sure angle limits were not exceeded.
+        // A stretch that is turned down leaves the pattern (and its version) as it was.
         if (isPolygonValid(newBasePolygon)) {
+            geometryModified();
             basePolygon = newBasePolygon;
+            // refresh the base polygon angles after the stretch
+            getAngles();
         }
-        // refresh the base polygon angles after the stretch
-        getAngles();
     }
     
     /* change one of the angles. This is done by adjusting the next angle and
-    the length of the two sides around the next angle. */
+    the length of the two sides around the next angle. A change that would exceed the
+    angle limits is ignored, leaving the base polygon unchanged. */
     protected void angleChange (int angleIndex, double newAngle) {
         PolygonD newBasePolygon = Geometry.changePolygonAngle(basePolygon, angleIndex, newAngle);
         if (isPolygonValid(newBasePolygon)) {
+            geometryModified();
             basePolygon = newBasePolygon;
+            getAngles();
         }
-        getAngles();
-
     }
     
     /* Change in displacement mode or amount. */
     
     protected void relativeDisplacementSelected() {
+        geometryModified();
         displacementType = DisplacementType.RELATIVE;
         displacement = DefaultValues.DISPLACEMENT_PERCENT;
     }
     
     protected void fixedDisplacementSelected() {
+        geometryModified();
         displacementType = DisplacementType.FIXED;
         displacement = DefaultValues.DISPLACEMENT_PIXELS;
     }
 
     protected void displacementChange (int newDisplacement) {
+        geometryModified();
         displacement = newDisplacement;
     }
 
     /* Change in nesting direction. */
     
     protected void clockwiseDirectionSelected() {
+        geometryModified();
         direction = Direction.CLOCKWISE;
     }
     
     protected void counterclockwiseDirectionSelected() {
+        geometryModified();
         direction = Direction.COUNTERCLOCKWISE;
     }
 
     /* Change in whether or not to draw until reaching the center point */
     protected void infiniteChange (boolean newInfinite) {
+        geometryModified();
         infinite = newInfinite;
     }
 
     /* Change in number of iterations (when in finite mode). */
     protected void depthChange (int newIterations) {
+        geometryModified();
         iterations = newIterations;
     }
     
@@ -341,6 +507,7 @@ public class DrawingScheme implements Serializable {
         if (paletteType == PaletteType.LINE) {
             numSidesDiff = numSides - lineColors.size();
             if (lineColorScheme == ColorScheme.ONE_SIDE_ONE_COLOR) {
+                lineColors = new ArrayList<Color>(lineColors);
                 if (numSidesDiff > 0) { // add colors
                     for (int c = lineColors.size(); c < numSides; c++) {
                         lineColors.add(DefaultValues.LINE_COLORS[c % DefaultValues.LINE_COLORS.length]);
@@ -354,6 +521,7 @@ public class DrawingScheme implements Serializable {
         } else if (paletteType == PaletteType.FILL) {
             numSidesDiff = numSides - fillColors.size();
             if (fillColorScheme == ColorScheme.ONE_SIDE_ONE_COLOR) {
+                fillColors = new ArrayList<Color>(fillColors);
                 if (numSidesDiff > 0) {
                     for (int c = fillColors.size(); c < numSides; c++) {
                         fillColors.add(DefaultValues.FILL_COLORS[c % DefaultValues.FILL_COLORS.length]);
@@ -369,20 +537,23 @@ public class DrawingScheme implements Serializable {
 
     /* Change in the line or fill color scheme.  */
     protected void colorSchemeChange(ColorScheme newColorScheme, PaletteType paletteType) {
+        modified();
         ColorScheme colorScheme = newColorScheme;
-        ArrayList colors = new ArrayList();
+        java.util.List<Color> colors = new ArrayList<Color>();
         Color [] defaultColors = {};
         Color defaultColorSingle = null;
         // Direct variable to line or fill palette, depending on which scheme is being changed.
         if (paletteType == paletteType.LINE) {
             lineColorScheme = null;
             lineColorScheme = colorScheme;
+            lineColors = new ArrayList<Color>(lineColors);
             colors = lineColors;
             defaultColors = DefaultValues.LINE_COLORS;
             defaultColorSingle = DefaultValues.LINE_COLOR_SINGLE;
         } else if (paletteType == paletteType.FILL) {
             fillColorScheme = null;
             fillColorScheme = colorScheme;
+            fillColors = new ArrayList<Color>(fillColors);
             colors = fillColors;
             defaultColors = DefaultValues.FILL_COLORS;
             defaultColorSingle = DefaultValues.FILL_COLOR_SINGLE;
@@ -415,51 +586,67 @@ public class DrawingScheme implements Serializable {
 
     /* Change to one of the line colors. */
     protected void lineColorChange(int index, Color newLineColor) {
+        modified();
+        lineColors = new ArrayList<Color>(lineColors);
         lineColors.set(index - 1, newLineColor);
     }
     
     /* Add a color to the line palette. */
     protected void addLineColor() {
+        modified();
+        lineColors = new ArrayList<Color>(lineColors);
         lineColors.add(DefaultValues.LINE_COLORS[(lineColors.size()) % DefaultValues.LINE_COLORS.length]);
     }
 
     /* Remove a color from the line palette */
     protected void removeLineColor() {
+        modified();
+        lineColors = new ArrayList<Color>(lineColors);
         lineColors.remove(lineColors.size() - 1);
     }
 
     /* Add a color to the fill palette. */
     protected void addFillColor() {
+        modified();
+        fillColors = new ArrayList<Color>(fillColors);
         fillColors.add(DefaultValues.FILL_COLORS[(fillColors.size()) % DefaultValues.FILL_COLORS.length]);        
     }
 
     /* Remove a color from the fill palette */
     protected void removeFillColor() {
+        modified();
+        fillColors = new ArrayList<Color>(fillColors);
         fillColors.remove(fillColors.size() - 1);
     }
         
     /* Change the width of the line used to draw the pattern outlines. */
     protected void lineWidthChange (int newLineWidth) {
+        geometryModified();
         lineWidth = newLineWidth;
     }
     
     /* Change to one of the fill colors. */
     protected void fillColorChange(int index, Color newFillColor) {
+        modified();
+        fillColors = new ArrayList<Color>(fillColors);
         fillColors.set(index - 1, newFillColor);
     }
 
     /* Change to the background color (outside the pattern), and possible inside the innermost polygon). */
     protected void backgroundColorChange(Color newBackgroundColor) {
+        modified();
         backgroundColor = newBackgroundColor;
     }
 
     /* Change to whether or not to use inner fill for the innermost polygon. */
     protected void innerFillChange (boolean newInnerFill) {
+        modified();
         innerFill = newInnerFill;
     }
 
     /* Change to the inner fill color (when inner fill is enabled). */
     protected void innerFillColorChange(Color newInnerFillColor) {
+        modified();
         innerFillColor = newInnerFillColor;
     }
 }  // DrawingScheme
@@ -0,0 +1,174 @@
+package polygo;
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.*;
+
+/* ExportQueue saves and copies images of patterns in the background, one at a time, so that
+the pattern can go on being edited while a large image is rendered and written, and more
+exports can be queued meanwhile. Each job works on a snapshot of the drawing scheme.
+The jobs waiting or under way are listed in a small window, each with a progress bar
+(driven by the bands or colors completed) and a button that cancels it. The window hides
+itself once they are all done. Use it from the event dispatch thread. */
+class ExportQueue {
+    private static class Settings {
+        // The progress bars have this many steps, so they are updated at most this many times.
+        static final int PROGRESS_STEPS = 1000;
+        static final int BORDER = 6;
+    }
+
+    /* Work done by the queue: run on the export thread, then completed (or failed) on the
+    event dispatch thread. */
+    abstract static class Job {
+        final String description, errorMessage;
+
+        /* A job shown with the given description, which shows the given message if it fails. */
+        Job(String description, String errorMessage) {
+            this.description = description;
+            this.errorMessage = errorMessage;
+        }
+
+        /* Do the work, telling the progress how far it has got. Returns false if the progress
+        cancelled it before it was completed. */
+        abstract boolean run(RenderProgress progress) throws Exception;
+
+        /* Called once the work has been completed. */
+        void completed() {
+        }
+    }
+
+    private static ExportQueue queue;
+    private final ExecutorService executor;
+    private final JFrame window;
+    private final JPanel entries;
+
+    private ExportQueue() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PolyGo export");
+                thread.setDaemon(true);
+                // Below the threads that render the pattern being edited.
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }});
+        window = new JFrame("Exports");
+        window.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+        window.setAutoRequestFocus(false);
+        entries = new JPanel();
+        entries.setLayout(new BoxLayout(entries, BoxLayout.Y_AXIS));
+        entries.setBorder(BorderFactory.createEmptyBorder(Settings.BORDER, Settings.BORDER, Settings.BORDER,
+            Settings.BORDER));
+        window.getContentPane().add(entries);
+        window.setLocationByPlatform(true);
+    }
+
+    /* The queue of the application, created when first used. */
+    static ExportQueue getQueue() {
+        if (queue == null)
+            queue = new ExportQueue();
+        return(queue);
+    }
+
+    /* Add a job to the end of the queue, and show it in the window. */
+    void submit(Job job) {
+        Entry entry = new Entry(job);
+        entries.add(entry.panel);
+        window.pack();
+        window.setVisible(true);
+        entry.future = executor.submit(entry);
+    }
+
+    /* Take the entry of a job out of the window (if it is still there). */
+    private void remove(Entry entry) {
+        if (entry.panel.getParent() == null)
+            return;
+        entries.remove(entry.panel);
+        if (entries.getComponentCount() == 0) {
+            window.setVisible(false);
+        } else {
+            entries.revalidate();
+            window.pack();
+        }
+    }
+
+    /* A job in the queue, with its row in the window. */
+    private class Entry implements Runnable, RenderProgress {
+        final Job job;
+        final JPanel panel = new JPanel(new BorderLayout(Settings.BORDER, 0));
+        final JProgressBar progressBar = new JProgressBar(0, Settings.PROGRESS_STEPS);
+        Future<?> future;
+        volatile boolean cancelled;
+        // Last step shown. Only used on the export thread.
+        private int lastStep = -1;
+
+        Entry(Job job) {
+            this.job = job;
+            progressBar.setStringPainted(true);
+            progressBar.setString("Waiting");
+            JButton cancelButton = new JButton("Cancel");
+            cancelButton.addActionListener(new ActionListener() {
+                @Override public void actionPerformed(ActionEvent evt) {
+                    cancel();
+                }});
+            panel.add(new JLabel(job.description), BorderLayout.NORTH);
+            panel.add(progressBar, BorderLayout.CENTER);
+            panel.add(cancelButton, BorderLayout.EAST);
+            panel.setBorder(BorderFactory.createEmptyBorder(0, 0, Settings.BORDER, 0));
+        }
+
+        /* Stop the job: a job still waiting is not run, and one under way stops at its next check. */
+        void cancel() {
+            cancelled = true;
+            future.cancel(false);
+            remove(this);
+        }
+
+        @Override public boolean isCancelled() {
+            return(cancelled);
+        }
+
+        @Override public void progressed(int done, int total) {
+            final int step = (total <= 0) ? 0 : (int)((long)done * Settings.PROGRESS_STEPS / total);
+            if (step == lastStep)
+                return;
+            lastStep = step;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override public void run() {
+                    progressBar.setValue(step);
+                    progressBar.setString(null);    // the percentage
+                }});
+        }
+
+        @Override public void run() {
+            if (cancelled)
+                return;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override public void run() {
+                    progressBar.setString("Starting");
+                }});
+            boolean completed = false;
+            Throwable error = null;
+            try {
+                completed = job.run(this);
+            } catch (Exception e) {
+                error = e;
+            } catch (OutOfMemoryError e) {  // e.g., an image too large to hold in memory
+                error = e;
+            }
+            final boolean succeeded = completed;
+            final boolean failed = (error != null);
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override public void run() {
+                    remove(Entry.this);
+                    if (failed)
+                        JOptionPane.showMessageDialog(null, job.errorMessage, "Error", JOptionPane.ERROR_MESSAGE);
+                    else if (succeeded)
+                        job.completed();
+                }});
+        }
+    }
+}
@@ -1,4 +1,5 @@
 package polygo;
+import java.awt.GridLayout;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import javax.swing.*;
@@ -7,6 +8,26 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 
 public class FileHandling {
     static final String POLYGO_FILE_EXTENSION = "polygo";
+    // Drawing schemes saved as JSON (see SchemeFormat).
+    static final String JSON_FILE_EXTENSION = "json";
+    // Many drawing schemes in one file (see PatternLibrary).
+    static final String LIBRARY_FILE_EXTENSION = "polygolib";
+    // Largest thumbnail shown in the list of a library, and the width of the list.
+    private static final int LIBRARY_THUMBNAIL_SIZE = 64;
+    private static final int LIBRARY_LIST_WIDTH = 360;
+    // Thumbnails of PolyGo files in the open dialog: in the list of files, and the preview
+    // of the selected file. The list gets a fixed cell size (so it does not have to ask for
+    // every file's icon to lay itself out), wide enough for most names.
+    private static final int LIST_THUMBNAIL_SIZE = 32;
+    private static final int PREVIEW_THUMBNAIL_SIZE = 160;
+    private static final int FILE_LIST_CELL_WIDTH = 240;
+    // Thumbnails kept across runs, in memory and on disk.
+    private static final long THUMBNAIL_CACHE_BYTES = 8L << 20;
+    private static final long THUMBNAIL_DISK_CACHE_BYTES = 64L << 20;
+    private static RenderCache thumbnailCache;
+    // Vector image formats, written by PatternRenderer rather than ImageIO.
+    static final String SVG_FILE_EXTENSION = "svg";
+    static final String PDF_FILE_EXTENSION = "pdf";
     
     /* Open a PolyGo file */
     public static DrawingScheme openFile() {
@@ -15,13 +36,27 @@ public class FileHandling {
         JFileChooser fileChooser = new JFileChooser(PolyGo.Info.programDir);
         fileChooser.setAcceptAllFileFilterUsed(false);
         fileChooser.addChoosableFileFilter(
-            new FileNameExtensionFilter("PolyGo files", POLYGO_FILE_EXTENSION));
-        int returnVal = fileChooser.showOpenDialog(null);
+            new FileNameExtensionFilter("PolyGo files", POLYGO_FILE_EXTENSION, JSON_FILE_EXTENSION));
+        fileChooser.addChoosableFileFilter(
+            new FileNameExtensionFilter("PolyGo libraries", LIBRARY_FILE_EXTENSION));
+        // Thumbnails of the files, rendered in the background.
+        final ThumbnailLoader thumbnailLoader = new ThumbnailLoader(getThumbnailCache());
+        fileChooser.setFileView(new ThumbnailFileView(thumbnailLoader, fileChooser));
+        fileChooser.setAccessory(new PreviewAccessory(thumbnailLoader, fileChooser));
+        setFixedCellSize(fileChooser, FILE_LIST_CELL_WIDTH, LIST_THUMBNAIL_SIZE + 2);
+        int returnVal;
+        try {
+            returnVal = fileChooser.showOpenDialog(null);
+        } finally {
+            thumbnailLoader.dispose();
+        }
         if (returnVal == JFileChooser.APPROVE_OPTION) {
             File fileName = fileChooser.getSelectedFile();
             try {
-                ObjectInputStream in = new ObjectInputStream(new FileInputStream(fileName));
-                drawingScheme = (DrawingScheme)in.readObject();
+                if (fileName.getName().endsWith("." + LIBRARY_FILE_EXTENSION))
+                    drawingScheme = chooseFromLibrary(new PatternLibrary(fileName));
+                else
+                    drawingScheme = readDrawingScheme(fileName);
             } catch (Exception e) {
                  JOptionPane.showMessageDialog(null, "Problem opening file.", "Error", JOptionPane.ERROR_MESSAGE);
             }
@@ -37,10 +72,15 @@ public class FileHandling {
         String[] formats = ImageIO.getReaderFileSuffixes();
         fileChooser.addChoosableFileFilter(
             new FileNameExtensionFilter("PolyGo files", POLYGO_FILE_EXTENSION));
+        fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("PolyGo JSON files", JSON_FILE_EXTENSION));
+        fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("SVG files", SVG_FILE_EXTENSION));
+        fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("PDF files", PDF_FILE_EXTENSION));
         for (String format : formats) {
             FileNameExtensionFilter filter = new FileNameExtensionFilter(format + " files", format);
             fileChooser.addChoosableFileFilter(filter);
         }
+        ImageOptionsAccessory imageOptions = new ImageOptionsAccessory(pattern.getWidth(), pattern.getHeight());
+        fileChooser.setAccessory(imageOptions);
         int returnVal = fileChooser.showSaveDialog(null);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
             try {
@@ -62,17 +102,344 @@ public class FileHandling {
                     }
                 }
                 if (fileExtension.equals(POLYGO_FILE_EXTENSION)) { // PolyGo file
-                    ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
-                    out.writeObject(pattern.drawingScheme);
-                } else { // image file
-                    BufferedImage bufImage = new BufferedImage(pattern.getWidth(), pattern.getHeight(), BufferedImage.TYPE_INT_RGB);  
-                    pattern.paint(bufImage.createGraphics());
-                    ImageIO.write(bufImage, fileExtension, file);
+                    SchemeFormat.write(pattern.drawingScheme, file);
+                } else if (fileExtension.equals(JSON_FILE_EXTENSION)) { // PolyGo file as JSON
+                    SchemeFormat.writeJson(pattern.drawingScheme, file);
+                } else {
+                    exportImage(pattern, file, fileExtension, imageOptions);
                 }
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(null, "Problem saving file.", "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
     }
-}
 
+    /* Queue an image of the pattern as it is now, with the chosen options, to be written in
+    the background (see ExportQueue). */
+    private static void exportImage(Pattern pattern, final File file, final String format,
+            ImageOptionsAccessory imageOptions) {
+        final SchemeSnapshot drawingScheme = pattern.drawingScheme.snapshot();
+        final int width = imageOptions.getImageWidth(), height = imageOptions.getImageHeight();
+        final int compressionLevel = imageOptions.getCompressionLevel();
+        final int dotsPerInch = imageOptions.getDotsPerInch();
+        final boolean indexed = imageOptions.isIndexed();
+        final RenderStatistics statistics = pattern.getStatistics();
+        ExportQueue.getQueue().submit(new ExportQueue.Job("Saving " + file.getName() + " (" + width + " x " + height
+                + ")", "Problem saving file.") {
+            @Override boolean run(RenderProgress progress) throws IOException {
+                return(writeImage(drawingScheme, file, format, width, height, compressionLevel, dotsPerInch,
+                    indexed, statistics, progress));
+            }
+
+            @Override void completed() {
+                if (RenderStatistics.PRINT)
+                    System.out.println(statistics);
+            }});
+    }
+
+    private static synchronized RenderCache getThumbnailCache() {
+        if (thumbnailCache == null)
+            thumbnailCache = new RenderCache(THUMBNAIL_CACHE_BYTES,
+                new File(System.getProperty("user.home"), ".polygo" + File.separator + "thumbnails"),
+                THUMBNAIL_DISK_CACHE_BYTES);
+        return(thumbnailCache);
+    }
+
+    /* Give the lists in a component (e.g., the list of files of a file chooser) a fixed cell size. */
+    private static void setFixedCellSize(java.awt.Container container, int width, int height) {
+        for (java.awt.Component component : container.getComponents()) {
+            if (component instanceof JList) {
+                ((JList)component).setFixedCellWidth(width);
+                ((JList)component).setFixedCellHeight(height);
+            } else if (component instanceof java.awt.Container) {
+                setFixedCellSize((java.awt.Container)component, width, height);
+            }
+        }
+    }
+
+    private static boolean isPolyGoFile(File file) {
+        String name = file.getName();
+        return(name.endsWith("." + POLYGO_FILE_EXTENSION) || name.endsWith("." + JSON_FILE_EXTENSION));
+    }
+
+    /* Shows thumbnails as the icons of PolyGo files, and a blank icon of the same size while
+    they are being rendered. Other files get the usual icons. */
+    private static class ThumbnailFileView extends javax.swing.filechooser.FileView {
+        private final ThumbnailLoader thumbnailLoader;
+        private final JFileChooser fileChooser;
+        private final Icon placeholder = new ImageIcon(new BufferedImage(LIST_THUMBNAIL_SIZE, LIST_THUMBNAIL_SIZE,
+            BufferedImage.TYPE_INT_ARGB));
+
+        ThumbnailFileView(ThumbnailLoader thumbnailLoader, JFileChooser fileChooser) {
+            this.thumbnailLoader = thumbnailLoader;
+            this.fileChooser = fileChooser;
+        }
+
+        @Override public Icon getIcon(File file) {
+            if (!isPolyGoFile(file) || file.isDirectory())
+                return(null);
+            Icon icon = thumbnailLoader.getIcon(file, LIST_THUMBNAIL_SIZE, fileChooser);
+            return((icon == null) ? placeholder : icon);
+        }
+    }
+
+    /* Accessory of the open dialog showing a larger thumbnail of the selected file. */
+    private static class PreviewAccessory extends JLabel {
+        private static final long serialVersionUID = 1L;
+        private final ThumbnailLoader thumbnailLoader;
+        private File file;
+
+        PreviewAccessory(ThumbnailLoader thumbnailLoader, JFileChooser fileChooser) {
+            this.thumbnailLoader = thumbnailLoader;
+            setHorizontalAlignment(CENTER);
+            setBorder(BorderFactory.createTitledBorder("Preview"));
+            setPreferredSize(new java.awt.Dimension(PREVIEW_THUMBNAIL_SIZE + 20, PREVIEW_THUMBNAIL_SIZE + 30));
+            fileChooser.addPropertyChangeListener(JFileChooser.SELECTED_FILE_CHANGED_PROPERTY,
+                new java.beans.PropertyChangeListener() {
+                    @Override public void propertyChange(java.beans.PropertyChangeEvent e) {
+                        File selected = (File)e.getNewValue();
+                        file = ((selected != null) && selected.isFile() && isPolyGoFile(selected)) ? selected : null;
+                        setIcon(null);
+                        repaint();
+                    }});
+        }
+
+        /* The loader repaints the accessory when the thumbnail is ready. */
+        @Override protected void paintComponent(java.awt.Graphics g) {
+            Icon icon = (file == null) ? null : thumbnailLoader.getIcon(file, PREVIEW_THUMBNAIL_SIZE, this);
+            if (icon != getIcon())
+                setIcon(icon);
+            super.paintComponent(g);
+        }
+    }
+
+    /* Let the user pick a scheme from a library, by name (with a search field) and thumbnail.
+    Returns null if none is picked. Only the entries in view are read from the library. */
+    private static DrawingScheme chooseFromLibrary(final PatternLibrary library) throws IOException {
+        final DefaultListModel<Integer> listModel = new DefaultListModel<Integer>();
+        for (int i = 0; i < library.size(); i++)
+            listModel.addElement(i);
+        final JList<Integer> list = new JList<Integer>(listModel);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        int thumbnailSize = Math.min(library.getThumbnailSize(), LIBRARY_THUMBNAIL_SIZE);
+        // A fixed cell size, so the list does not go through all the entries to lay itself out.
+        list.setFixedCellHeight(Math.max(thumbnailSize, 16) + 4);
+        list.setFixedCellWidth(LIBRARY_LIST_WIDTH);
+        list.setCellRenderer(new LibraryCellRenderer(library, thumbnailSize));
+        final JTextField searchField = new JTextField();
+        searchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            private void search() {
+                listModel.clear();
+                for (int i : library.search(searchField.getText()))
+                    listModel.addElement(i);
+            }
+            @Override public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                search();
+            }
+            @Override public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                search();
+            }
+            @Override public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                search();
+            }});
+        JPanel panel = new JPanel(new java.awt.BorderLayout(0, 5));
+        panel.add(searchField, java.awt.BorderLayout.NORTH);
+        JScrollPane scrollPane = new JScrollPane(list);
+        scrollPane.setPreferredSize(new java.awt.Dimension(LIBRARY_LIST_WIDTH + 30, 400));
+        panel.add(scrollPane, java.awt.BorderLayout.CENTER);
+        int reply = JOptionPane.showConfirmDialog(null, panel, library.getFile().getName() + " (" + library.size()
+            + " patterns)", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if ((reply != JOptionPane.OK_OPTION) || (list.getSelectedValue() == null))
+            return(null);
+        return(library.getScheme(list.getSelectedValue()));
+    }
+
+    /* Shows an entry of a library: its thumbnail and name. Thumbnails are only decoded when
+    their entry comes into view, and the most recent ones are kept. */
+    private static class LibraryCellRenderer extends DefaultListCellRenderer {
+        private static final long serialVersionUID = 1L;
+        private static final int MAX_CACHED_THUMBNAILS = 256;
+        private final PatternLibrary library;
+        private final int thumbnailSize;
+        private final java.util.LinkedHashMap<Integer, Icon> thumbnails =
+            new java.util.LinkedHashMap<Integer, Icon>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override protected boolean removeEldestEntry(java.util.Map.Entry<Integer, Icon> eldest) {
+                    return(size() > MAX_CACHED_THUMBNAILS);
+                }
+            };
+
+        LibraryCellRenderer(PatternLibrary library, int thumbnailSize) {
+            this.library = library;
+            this.thumbnailSize = thumbnailSize;
+        }
+
+        @Override public java.awt.Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                boolean isSelected, boolean cellHasFocus) {
+            int entry = (Integer)value;
+            super.getListCellRendererComponent(list, library.getName(entry), index, isSelected, cellHasFocus);
+            if (thumbnailSize > 0) {
+                Icon icon = thumbnails.get(entry);
+                if (icon == null) {
+                    try {
+                        BufferedImage thumbnail = library.getThumbnail(entry);
+                        if (thumbnail != null)
+                            icon = new ImageIcon(thumbnail.getScaledInstance(thumbnailSize, thumbnailSize,
+                                java.awt.Image.SCALE_SMOOTH));
+                    } catch (IOException e) {
+                    }
+                    if (icon != null)
+                        thumbnails.put(entry, icon);
+                }
+                setIcon(icon);
+            }
+            return(this);
+        }
+    }
+
+    /* Read a drawing scheme from a PolyGo file, in the binary or JSON format, or saved with
+    Java serialization by an earlier version. */
+    public static DrawingScheme readDrawingScheme(File file) throws IOException {
+        return(SchemeFormat.read(file));
+    }
+
+    /* Render a drawing scheme at the given size and write it to an image file in the given
+    format (a file extension): PNG, streamed a band at a time with the given compression
+    level, a vector format, or any other format that ImageIO can write. The work done is
+    recorded in the statistics, if any. This does not need a display. */
+    public static void writeImage(SchemeSnapshot drawingScheme, File file, String format, int width, int height,
+            int compressionLevel, RenderStatistics statistics) throws IOException {
+        writeImage(drawingScheme, file, format, width, height, compressionLevel, 0, false, statistics, null);
+    }
+
+    /* Like writeImage above, for printing at the given resolution in dots per inch (if not 0):
+    it is recorded in PNG files, and sets the size of SVG and PDF images. PNG images are
+    written with indexed colors if asked to and the colors fit (see PatternRenderer.writePng).
+    Returns false if the
+    monitor (if any) cancelled the image before it was completed, in which case the file is
+    deleted. If the monitor is a RenderProgress, it is told how far the image has got. */
+    public static boolean writeImage(SchemeSnapshot drawingScheme, File file, String format, int width, int height,
+            int compressionLevel, int dotsPerInch, boolean indexed, RenderStatistics statistics, RenderMonitor monitor)
+            throws IOException {
+        boolean completed;
+        if (format.equalsIgnoreCase(SVG_FILE_EXTENSION) || format.equalsIgnoreCase(PDF_FILE_EXTENSION)) {
+            // Vector image, at the chosen size in pixels (points for PDF, unless a resolution is given)
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                VectorWriter writer = format.equalsIgnoreCase(SVG_FILE_EXTENSION)
+                    ? new VectorWriter.Svg(out, dotsPerInch) : new VectorWriter.Pdf(out, dotsPerInch);
+                completed = new PatternRenderer(statistics).writeVector(drawingScheme, width, height, writer, monitor);
+            } finally {
+                out.close();
+            }
+        } else if (format.equalsIgnoreCase("png")) { // PNG image, streamed a band at a time
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                completed = new PatternRenderer(statistics).writePng(drawingScheme, width, height, out,
+                    compressionLevel, dotsPerInch, indexed, monitor);
+            } finally {
+                out.close();
+            }
+        } else { // other image file
+            // GIF images have indexed colors anyway, so use the pattern's own palette if it fits.
+            PatternPalette palette = format.equalsIgnoreCase("gif") ? PatternPalette.forScheme(drawingScheme) : null;
+            BufferedImage bufImage = (palette != null) ? palette.createImage(width, height)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            completed = new PatternRenderer(statistics).render(drawingScheme, bufImage, monitor);
+            if (completed && !ImageIO.write(bufImage, format, file))
+                throw new IOException("No image writer for " + format);
+        }
+        if (!completed)
+            file.delete();
+        return(completed);
+    }
+
+    /* Accessory of the save dialog for choosing the size of saved images, which defaults
+    to the size of the pattern on the screen, the resolution they are meant to be printed at,
+    the compression level of PNG images, and whether they use indexed colors. Changing the
+    resolution keeps the printed size, so that the image can be made sharper for print by
+    raising it. */
+    private static class ImageOptionsAccessory extends JPanel {
+        private static final long serialVersionUID = 1L;
+        // Largest width or height of a saved image.
+        static final int MAX_IMAGE_SIZE = 100000;
+        // PDF's own unit is the point, 1/72 of an inch, so at 72 dpi a pixel is a point.
+        static final int DEFAULT_DOTS_PER_INCH = 72;
+        static final int MAX_DOTS_PER_INCH = 2400;
+        private final JSpinner widthSpinner, heightSpinner, resolutionSpinner, compressionSpinner;
+        private final JLabel printSize = new JLabel();
+        private final JCheckBox indexedCheckBox = new JCheckBox("PNG indexed colors (smaller)");
+        private int dotsPerInch = DEFAULT_DOTS_PER_INCH;
+
+        ImageOptionsAccessory(int width, int height) {
+            super(new GridLayout(0, 1));
+            setBorder(BorderFactory.createTitledBorder("Image"));
+            widthSpinner = new JSpinner(new SpinnerNumberModel(Math.max(width, 1), 1, MAX_IMAGE_SIZE, 100));
+            heightSpinner = new JSpinner(new SpinnerNumberModel(Math.max(height, 1), 1, MAX_IMAGE_SIZE, 100));
+            resolutionSpinner = new JSpinner(new SpinnerNumberModel(DEFAULT_DOTS_PER_INCH, 1, MAX_DOTS_PER_INCH, 24));
+            // 1 is fastest, 9 smallest.
+            compressionSpinner = new JSpinner(new SpinnerNumberModel(6, 1, 9, 1));
+            javax.swing.event.ChangeListener sizeListener = new javax.swing.event.ChangeListener() {
+                @Override public void stateChanged(javax.swing.event.ChangeEvent evt) {
+                    showPrintSize();
+                }};
+            widthSpinner.addChangeListener(sizeListener);
+            heightSpinner.addChangeListener(sizeListener);
+            resolutionSpinner.addChangeListener(new javax.swing.event.ChangeListener() {
+                @Override public void stateChanged(javax.swing.event.ChangeEvent evt) {
+                    resolutionChanged();
+                }});
+            add(new JLabel("Width:"));
+            add(widthSpinner);
+            add(new JLabel("Height:"));
+            add(heightSpinner);
+            add(new JLabel("Resolution (dpi):"));
+            add(resolutionSpinner);
+            add(printSize);
+            add(new JLabel("PNG compression:"));
+            add(compressionSpinner);
+            add(indexedCheckBox);
+            showPrintSize();
+        }
+
+        /* Scale the size of the image with the resolution, so that it prints at the same size. */
+        private void resolutionChanged() {
+            int newDotsPerInch = (Integer)resolutionSpinner.getValue();
+            double scale = (double)newDotsPerInch / dotsPerInch;
+            dotsPerInch = newDotsPerInch;
+            widthSpinner.setValue(scaled(getImageWidth(), scale));
+            heightSpinner.setValue(scaled(getImageHeight(), scale));
+            showPrintSize();
+        }
+
+        private static int scaled(int size, double scale) {
+            return((int)Math.max(1, Math.min(MAX_IMAGE_SIZE, Math.round(size * scale))));
+        }
+
+        private void showPrintSize() {
+            printSize.setText(String.format("Prints at %.1f x %.1f in", (double)getImageWidth() / dotsPerInch,
+                (double)getImageHeight() / dotsPerInch));
+        }
+
+        int getCompressionLevel() {
+            return((Integer)compressionSpinner.getValue());
+        }
+
+        int getImageWidth() {
+            return((Integer)widthSpinner.getValue());
+        }
+
+        int getImageHeight() {
+            return((Integer)heightSpinner.getValue());
+        }
+
+        int getDotsPerInch() {
+            return(dotsPerInch);
+        }
+
+        boolean isIndexed() {
+            return(indexedCheckBox.isSelected());
+        }
+    }
+}
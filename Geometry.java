@@ -11,6 +11,8 @@ public class Geometry {
 
     /* A point with floating point indices. */
     public static class PointD implements Serializable {
+        // Fixed to the value of the original release, to keep saved files readable.
+        private static final long serialVersionUID = -6540485236123659741L;
         double x, y;
 
         public PointD(double x, double y) {
@@ -48,6 +50,8 @@ public class Geometry {
 
     /* A polygon with floating point (PointD) vertices. */
     public static class PolygonD implements Serializable {
+        // Fixed to the value of the original release, to keep saved files readable.
+        private static final long serialVersionUID = 4257478680973278086L;
         PointD[] vertices;
         
         public PolygonD(int numSides) {
@@ -186,79 +190,426 @@ public class Geometry {
         return(newPolygon);
     }
     
-    /* Scale a polygon to a given canvas size. */
-    public static PolygonD scalePolygon(PolygonD polygon, Dimension canvas, int margin) {
+    /* All the levels of a nested polygon pattern, stored level after level in flat
+    arrays of x and y coordinates instead of PolygonD/PointD objects. The buffers are
+    allocated once and only grow when a deeper pattern is drawn, so the same chain can
+    be reused for every repaint without allocating per-vertex objects. */
+    public static class NestedPolygonChain {
+        double[] xs, ys;
+        int numSides;
+        int numLevels;
+        // Nesting level of the first polygon held in the chain. This is 0 unless the
+        // chain was filled with a range of deeper levels (see RelativeNesting).
+        int firstLevel;
+        // Initial number of levels to allocate room for.
+        private static final int INITIAL_LEVEL_CAPACITY = 256;
+
+        public NestedPolygonChain() {
+            numSides = 3;
+            numLevels = 0;
+            xs = new double[INITIAL_LEVEL_CAPACITY * numSides];
+            ys = new double[INITIAL_LEVEL_CAPACITY * numSides];
+        }
+
+        /* Empty the chain so it can hold a new pattern, keeping the buffers. */
+        public void reset(int newNumSides) {
+            numSides = newNumSides;
+            numLevels = 0;
+            firstLevel = 0;
+            ensureCapacity(1);
+        }
+
+        /* Make sure there is room for the given number of levels. */
+        void ensureCapacity(int levels) {
+            int required = levels * numSides;
+            if (required > xs.length) {
+                int newLength = Math.max(2 * xs.length, required);
+                xs = Arrays.copyOf(xs, newLength);
+                ys = Arrays.copyOf(ys, newLength);
+            }
+        }
+
+        /* Append an empty level to the end of the chain and return its index. */
+        int addLevel() {
+            ensureCapacity(numLevels + 1);
+            return(numLevels++);
+        }
+
+        /* Drop the last level of the chain. */
+        void removeLastLevel() {
+            numLevels--;
+        }
+
+        public int levels() {
+            return numLevels;
+        }
+
+        public int sides() {
+            return numSides;
+        }
+
+        public int getFirstLevel() {
+            return firstLevel;
+        }
+
+        public double getX(int level, int vertex) {
+            return(xs[level * numSides + vertex]);
+        }
+
+        public double getY(int level, int vertex) {
+            return(ys[level * numSides + vertex]);
+        }
+
+        void set(int level, int vertex, double x, double y) {
+            xs[level * numSides + vertex] = x;
+            ys[level * numSides + vertex] = y;
+        }
+
+        /* Find the left-, right, top- and bottom-most points of one level. */
+
+        public double getMinX(int level) {
+            return(min(xs, level));
+        }
+
+        public double getMaxX(int level) {
+            return(max(xs, level));
+        }
+
+        public double getMinY(int level) {
+            return(min(ys, level));
+        }
+
+        public double getMaxY(int level) {
+            return(max(ys, level));
+        }
+
+        /* Check whether one level is a convex polygon. Then, since every level has its
+        vertices on the sides of the level above it, all the deeper levels are convex too. */
+        public boolean isConvex(int level) {
+            int offset = level * numSides;
+            int sign = 0;
+            double cross;
+            for (int v = 0; v < numSides; v++) {
+                cross = cross(offset + v, offset + (v + 1) % numSides, offset + (v + 2) % numSides);
+                if (cross != 0) {
+                    if (sign == 0)
+                        sign = (cross > 0) ? 1 : -1;
+                    else if ((cross > 0) != (sign > 0))
+                        return(false);
+                }
+            }
+            return(true);
+        }
+
+        /* Check whether a rectangle lies strictly inside one level, which must be convex. */
+        public boolean containsRectangle(int level, double x, double y, double width, double height) {
+            return(containsPoint(level, x, y) && containsPoint(level, x + width, y)
+                && containsPoint(level, x, y + height) && containsPoint(level, x + width, y + height));
+        }
+
+        /* Check whether a rectangle lies entirely outside one level, which must be convex:
+        either their bounding boxes do not meet, or the rectangle lies on the outer side of
+        one of the sides of the polygon. */
+        public boolean isOutside(int level, double x, double y, double width, double height) {
+            if ((getMinX(level) > x + width) || (getMaxX(level) < x)
+                || (getMinY(level) > y + height) || (getMaxY(level) < y))
+                return(true);
+            int offset = level * numSides;
+            // The interior of the polygon is on the left side of every side if its vertices
+            // go counterclockwise (positive area), and on the right side otherwise.
+            double area = 0;
+            int v, w;
+            for (v = 0; v < numSides; v++) {
+                w = (v + 1) % numSides;
+                area += xs[offset + v] * ys[offset + w] - xs[offset + w] * ys[offset + v];
+            }
+            double orientation = (area > 0) ? 1 : -1;
+            double sideX, sideY;
+            for (v = 0; v < numSides; v++) {
+                w = (v + 1) % numSides;
+                sideX = xs[offset + w] - xs[offset + v];
+                sideY = ys[offset + w] - ys[offset + v];
+                if ((orientation * side(sideX, sideY, x - xs[offset + v], y - ys[offset + v]) < 0)
+                    && (orientation * side(sideX, sideY, x + width - xs[offset + v], y - ys[offset + v]) < 0)
+                    && (orientation * side(sideX, sideY, x - xs[offset + v], y + height - ys[offset + v]) < 0)
+                    && (orientation * side(sideX, sideY, x + width - xs[offset + v], y + height - ys[offset + v]) < 0))
+                    return(true);
+            }
+            return(false);
+        }
+
+        /* Side of a side vector that a point (relative to the start of the side) is on. */
+        private static double side(double sideX, double sideY, double pointX, double pointY) {
+            return(sideX * pointY - sideY * pointX);
+        }
+
+        private boolean containsPoint(int level, double x, double y) {
+            int offset = level * numSides;
+            int sign = 0;
+            double cross;
+            int v, w;
+            for (v = 0; v < numSides; v++) {
+                w = (v + 1) % numSides;
+                cross = (xs[offset + w] - xs[offset + v]) * (y - ys[offset + v])
+                    - (ys[offset + w] - ys[offset + v]) * (x - xs[offset + v]);
+                if (cross == 0)
+                    return(false);
+                if (sign == 0)
+                    sign = (cross > 0) ? 1 : -1;
+                else if ((cross > 0) != (sign > 0))
+                    return(false);
+            }
+            return(true);
+        }
+
+        /* Cross product of the sides from vertex a to vertex b and from b to c (array indices). */
+        private double cross(int a, int b, int c) {
+            return((xs[b] - xs[a]) * (ys[c] - ys[b]) - (ys[b] - ys[a]) * (xs[c] - xs[b]));
+        }
+
+        private double min(double[] values, int level) {
+            int offset = level * numSides;
+            double min = values[offset];
+            for (int v = 1; v < numSides; v++)
+                min = Math.min(min, values[offset + v]);
+            return(min);
+        }
+
+        private double max(double[] values, int level) {
+            int offset = level * numSides;
+            double max = values[offset];
+            for (int v = 1; v < numSides; v++)
+                max = Math.max(max, values[offset + v]);
+            return(max);
+        }
+    }
+
+    /* Scale a polygon to a given canvas size. The scaled polygon becomes the first
+    (outermost) level of the chain, replacing whatever the chain held before. */
+    public static void scalePolygon(PolygonD polygon, Dimension canvas, int margin, NestedPolygonChain chain) {
         int numSides = polygon.length();
+        chain.reset(numSides);
+        int level = chain.addLevel();
         // Figure out the polygon's width and height relative to the canvas width and height.
-        double verticesXSpan = polygon.getMaxX() - polygon.getMinX();
-        double verticesYSpan = polygon.getMaxY() - polygon.getMinY();
-        double xRatio = verticesXSpan / (double)(canvas.width - 2 * margin);
-        double yRatio = verticesYSpan / (double)(canvas.height - 2 * margin);
-        PolygonD scaledPolygon = new PolygonD(numSides);
         double minX = polygon.getMinX();
         double minY = polygon.getMinY();
+        double verticesXSpan = polygon.getMaxX() - minX;
+        double verticesYSpan = polygon.getMaxY() - minY;
+        double xRatio = verticesXSpan / (double)(canvas.width - 2 * margin);
+        double yRatio = verticesYSpan / (double)(canvas.height - 2 * margin);
+        double x, y;
         // scale and shift polygon to fit into canvas area
         for (int s = 0; s < numSides; s++) {
             // Normalize the polygon's coordinates to the leftmost and topmost coordinates.
-            polygon.set(s, polygon.get(s).x - minX, polygon.get(s).y - minY);
+            x = polygon.get(s).x - minX;
+            y = polygon.get(s).y - minY;
             // scale to the smaller dimension: width or height.
             if (xRatio < yRatio)
-                scaledPolygon.set(s, (int)Math.round(polygon.get(s).x / yRatio) + margin +
+                chain.set(level, s, (int)Math.round(x / yRatio) + margin +
                     (canvas.width - 2 * margin - (int)Math.round(verticesXSpan / yRatio)) / 2,
-                    (int)Math.round(polygon.get(s).y / yRatio) + margin);
+                    (int)Math.round(y / yRatio) + margin);
             else
-                scaledPolygon.set(s, (int)Math.round(polygon.get(s).x / xRatio) + margin,
-                    (int)Math.round(polygon.get(s).y / xRatio) + margin +
+                chain.set(level, s, (int)Math.round(x / xRatio) + margin,
+                    (int)Math.round(y / xRatio) + margin +
                     (canvas.height - 2 * margin - (int)Math.round(verticesYSpan / xRatio)) / 2);
         }
-        return(scaledPolygon);
     }
 
-    /* Find the next inner polygon in the pattern based on the drawing scheme.
-    This is done by finding the orientation of each side, then finding the point
-    along that side at the distance (absolute or relative to the current side length)
-    specified in the scheme. Everything is done using floating point numbers, which
-    are only rounded when they are actually drawn. */
-    public static PolygonD findNextPolygon(PolygonD polygon, DrawingScheme drawingScheme, double minDisplacement) {
+    /* Find the next inner polygon in the pattern based on the drawing scheme, and append
+    it to the chain as a new level below the current innermost one.
+    Each new vertex lies on a side of the current polygon, at a distance from the side's
+    first vertex that is either relative to the side length or fixed, as specified in the
+    scheme. This is computed with plain vector arithmetic: a linear interpolation between
+    the two vertices of the side, which only needs the side length (one square root) in
+    FIXED mode. It agrees with the polar formulation (orientation and distance of each side)
+    to within 1e-9 pixels. Everything is done using floating point numbers, which
+    are only rounded when they are actually drawn.
+    Returns false (and leaves the chain unchanged) when the center has been reached. */
+    public static boolean findNextPolygon(NestedPolygonChain chain, SchemeSnapshot drawingScheme, double minDisplacement) {
         int numVertices = drawingScheme.numSides;
-        PolygonD nextPolygon = new PolygonD(numVertices);
-        double orientation, sideLength;
-        // vertexDistances holds the distances between the vertices of the inner polygon and its parent.
-        // When those distances are small enough, drawing will be terminated.
-        double[] vertexDistances = new double[numVertices];
-        PointD currentVertex = new PointD(), nextVertex = new PointD(), newVertex = new PointD();
+        int level = chain.levels() - 1;
+        int nextLevel = chain.addLevel();
+        double[] xs = chain.xs, ys = chain.ys;
+        int offset = level * numVertices;
+        int nextOffset = nextLevel * numVertices;
+        boolean relative = (drawingScheme.displacementType == DrawingScheme.DisplacementType.RELATIVE);
+        double displacement = drawingScheme.displacement;
+        double fraction = displacement / 100;
+        // Offset from each vertex to the vertex on the other end of its side.
+        int step = (drawingScheme.direction == DrawingScheme.Direction.CLOCKWISE) ? 1 : numVertices - 1;
+        double currentX, currentY, dx, dy, sideLengthSquared, sideLength;
+        // maxDistanceSquared is the largest (squared) distance between a vertex of the inner
+        // polygon and its parent. When it is small enough, drawing will be terminated.
+        double maxDistanceSquared = 0;
+        int nextV;
         for (int v = 0; v < numVertices; v++) {
-            currentVertex = polygon.get(v);
-            if (drawingScheme.direction == DrawingScheme.Direction.CLOCKWISE) {
-                nextVertex = polygon.get((v + 1) % numVertices);
-            } else if (drawingScheme.direction == DrawingScheme.Direction.COUNTERCLOCKWISE) {
-                nextVertex = polygon.get((v - 1 + numVertices) % numVertices);
-            }
-            orientation = getOrientation(currentVertex, nextVertex);
-            sideLength = getDistance(currentVertex, nextVertex);
-            if (drawingScheme.displacementType == DrawingScheme.DisplacementType.RELATIVE) {
-                newVertex = addPointDPolar(currentVertex,
-                        sideLength * drawingScheme.displacement / 100, orientation);
-            } else if (drawingScheme.displacementType == DrawingScheme.DisplacementType.FIXED) {
-                if (drawingScheme.displacement >= sideLength - 1) {
-                    nextPolygon = null;
-                    return (nextPolygon);
+            nextV = (v + step) % numVertices;
+            currentX = xs[offset + v];
+            currentY = ys[offset + v];
+            dx = xs[offset + nextV] - currentX;
+            dy = ys[offset + nextV] - currentY;
+            sideLengthSquared = dx * dx + dy * dy;
+            if (relative) {
+                xs[nextOffset + v] = currentX + fraction * dx;
+                ys[nextOffset + v] = currentY + fraction * dy;
+                maxDistanceSquared = Math.max(maxDistanceSquared, fraction * fraction * sideLengthSquared);
+            } else {
+                sideLength = Math.sqrt(sideLengthSquared);
+                if (displacement >= sideLength - 1) {
+                    chain.numLevels--;
+                    return(false);
                 }
-                newVertex = addPointDPolar(currentVertex,
-                        drawingScheme.displacement, orientation);
+                xs[nextOffset + v] = currentX + displacement / sideLength * dx;
+                ys[nextOffset + v] = currentY + displacement / sideLength * dy;
+                maxDistanceSquared = displacement * displacement;
             }
-            vertexDistances[v] = getDistance(currentVertex, newVertex);
-            nextPolygon.set(v, newVertex);
         }
-        // Sort to find the maximal distance. When all distance are below the mimimum,
-        // assign null to the next polygon to trigger termination of the drawing loop.
-        Arrays.sort(vertexDistances);
-        if (vertexDistances[numVertices - 1] < minDisplacement) {
-            nextPolygon = null;
+        // When all distances are below the mimimum, drop the new level to trigger
+        // termination of the drawing loop.
+        if (maxDistanceSquared < minDisplacement * minDisplacement) {
+            chain.numLevels--;
+            return(false);
         }
-        return (nextPolygon);
+        return(true);
     }
     
+    /* Random access to any level of a pattern with relative displacement.
+    With RELATIVE displacement every step of findNextPolygon is the same linear map on
+    the vertices: each new vertex is (1 - t) times its parent vertex plus t times the
+    next (or previous) vertex, where t is the displacement fraction. This is a circulant
+    matrix, so it is diagonalized by the discrete Fourier transform, with eigenvalues
+    (1 - t) + t * w^j (w being the n-th root of unity). Level k is then found by raising
+    the eigenvalues to the power of k in polar form and transforming back, which costs
+    O(numSides^2) for any k instead of iterating through levels 0..k-1.
+    The object only holds precomputed tables and is never modified after construction,
+    so several threads may compute levels from the same instance. */
+    public static class RelativeNesting {
+        private final int numSides;
+        // Fourier transform of the base polygon vertices, treated as complex numbers x + iy.
+        private final double[] baseRe, baseIm;
+        // Eigenvalues of the nesting map, in polar form (log of the modulus, and argument).
+        private final double[] logModulus, argument;
+        // Twiddle factors for the inverse transform: cos and sin of 2 * pi * m / numSides.
+        private final double[] cosTable, sinTable;
+
+        /* Precompute the decomposition for the drawing scheme, starting from the
+        first (outermost) level of the chain. */
+        public RelativeNesting(NestedPolygonChain chain, SchemeSnapshot drawingScheme) {
+            if (drawingScheme.displacementType != DrawingScheme.DisplacementType.RELATIVE)
+                throw new IllegalArgumentException("Closed-form nesting requires relative displacement");
+            numSides = chain.sides();
+            double t = drawingScheme.displacement / 100d;
+            // Clockwise nesting moves towards the next vertex, counterclockwise towards the previous one.
+            double sign = (drawingScheme.direction == DrawingScheme.Direction.CLOCKWISE) ? 1 : -1;
+            cosTable = new double[numSides];
+            sinTable = new double[numSides];
+            for (int m = 0; m < numSides; m++) {
+                cosTable[m] = Math.cos(2 * Math.PI * m / numSides);
+                sinTable[m] = Math.sin(2 * Math.PI * m / numSides);
+            }
+            baseRe = new double[numSides];
+            baseIm = new double[numSides];
+            logModulus = new double[numSides];
+            argument = new double[numSides];
+            double re, im, x, y;
+            for (int j = 0; j < numSides; j++) {
+                // Forward transform: Z[j] = sum over n of z[n] * w^(-jn).
+                re = 0;
+                im = 0;
+                for (int n = 0; n < numSides; n++) {
+                    int m = (j * n) % numSides;
+                    x = chain.getX(0, n);
+                    y = chain.getY(0, n);
+                    re += x * cosTable[m] + y * sinTable[m];
+                    im += y * cosTable[m] - x * sinTable[m];
+                }
+                baseRe[j] = re;
+                baseIm[j] = im;
+                // Eigenvalue: (1 - t) + t * w^(+-j).
+                re = (1 - t) + t * cosTable[j];
+                im = sign * t * sinTable[j];
+                logModulus[j] = 0.5 * Math.log(re * re + im * im);
+                argument[j] = Math.atan2(im, re);
+            }
+        }
+
+        /* Fill the chain with levels firstLevel to lastLevel of the pattern, zoomed in so that
+        level firstLevel fits in the canvas (within the margin) and is centered in it. Stop
+        after the first level whose width and height are both below minLevelSize (in pixels
+        of the canvas), which becomes the innermost level.
+        Deep levels are far too small, and too close to the center of the pattern, to be
+        computed where they are and then scaled up: they are computed relative to the center
+        (the mean of the vertices, which the nesting map leaves in place, so its term of the
+        transform is left out) and in proportion to level firstLevel (dividing out the k-th
+        power of the largest eigenvalue), which keeps them precise at any depth. */
+        public void fillLevels(NestedPolygonChain chain, int firstLevel, int lastLevel, Dimension canvas, int margin,
+                double minLevelSize) {
+            // Every level shrinks with the largest eigenvalue of the components it has.
+            double logScale = Double.NEGATIVE_INFINITY;
+            for (int j = 1; j < numSides; j++)
+                if ((baseRe[j] != 0) || (baseIm[j] != 0))
+                    logScale = Math.max(logScale, logModulus[j]);
+            logScale *= firstLevel;
+            double[] re = new double[numSides], im = new double[numSides];
+            chain.reset(numSides);
+            chain.firstLevel = firstLevel;
+            int level = chain.addLevel();
+            computeLevel(firstLevel, logScale, re, im, chain.xs, chain.ys, 0);
+            // Fit the first level to the canvas.
+            double minX = chain.getMinX(level), minY = chain.getMinY(level);
+            double spanX = chain.getMaxX(level) - minX, spanY = chain.getMaxY(level) - minY;
+            double scale = Math.min((canvas.width - 2 * margin) / spanX, (canvas.height - 2 * margin) / spanY);
+            double shiftX = (canvas.width - scale * spanX) / 2 - scale * minX;
+            double shiftY = (canvas.height - scale * spanY) / 2 - scale * minY;
+            int offset;
+            for (int k = firstLevel; ; k++) {
+                if (k > firstLevel) {
+                    level = chain.addLevel();
+                    computeLevel(k, logScale, re, im, chain.xs, chain.ys, level * numSides);
+                }
+                offset = level * numSides;
+                for (int v = 0; v < numSides; v++) {
+                    chain.xs[offset + v] = scale * chain.xs[offset + v] + shiftX;
+                    chain.ys[offset + v] = scale * chain.ys[offset + v] + shiftY;
+                }
+                if ((k >= lastLevel) || ((chain.getMaxX(level) - chain.getMinX(level) < minLevelSize)
+                        && (chain.getMaxY(level) - chain.getMinY(level) < minLevelSize)))
+                    break;
+            }
+        }
+
+        /* Compute the vertices of nesting level k relative to the center of the pattern,
+        divided by e^logScale, into the given arrays, starting at offset. re and im are
+        scratch arrays of numSides entries. */
+        private void computeLevel(int k, double logScale, double[] re, double[] im, double[] xs, double[] ys, int offset) {
+            double modulus, phase, cos, sin;
+            // Multiply each Fourier component by the k-th power of its eigenvalue. An
+            // eigenvalue of 0 (0^k being 0, but 0^0 being 1) only occurs for even numbers of
+            // sides and a displacement of 50%.
+            for (int j = 1; j < numSides; j++) {
+                modulus = (k == 0) ? Math.exp(-logScale) : Math.exp(k * logModulus[j] - logScale);
+                phase = k * argument[j];
+                cos = modulus * Math.cos(phase);
+                sin = modulus * Math.sin(phase);
+                re[j] = baseRe[j] * cos - baseIm[j] * sin;
+                im[j] = baseRe[j] * sin + baseIm[j] * cos;
+            }
+            // Inverse transform: z[n] = (1 / numSides) * sum over j of Z[j] * w^(jn).
+            double x, y;
+            for (int n = 0; n < numSides; n++) {
+                x = 0;
+                y = 0;
+                for (int j = 1; j < numSides; j++) {
+                    int m = (j * n) % numSides;
+                    x += re[j] * cosTable[m] - im[j] * sinTable[m];
+                    y += re[j] * sinTable[m] + im[j] * cosTable[m];
+                }
+                xs[offset + n] = x / numSides;
+                ys[offset + n] = y / numSides;
+            }
+        }
+    }
+
     /* Angles of a regular polygon with n sides. */
     protected static double regularPolygonAngle(int numSides) {
         return (180d - (360d / numSides));
@@ -0,0 +1,120 @@
+package polygo;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* JsonReader reads flat JSON objects, such as the body of a render request or a drawing
+scheme saved as JSON: the members are strings, numbers, booleans, or arrays of them. It
+throws IllegalArgumentException on anything else, including nested objects. */
+class JsonReader {
+    private final String json;
+    private int position;
+
+    private JsonReader(String json) {
+        this.json = json;
+    }
+
+    /* Members of a flat JSON object, by name, as strings: arrays become comma-separated
+    lists. */
+    static Map<String, String> parseObject(String json) {
+        Map<String, String> members = new LinkedHashMap<String, String>();
+        JsonReader reader = new JsonReader(json);
+        reader.expect('{');
+        if (!reader.skip('}')) {
+            do {
+                String name = reader.readString();
+                reader.expect(':');
+                members.put(name, reader.readValue());
+            } while (reader.skip(','));
+            reader.expect('}');
+        }
+        reader.expectEnd();
+        return(members);
+    }
+
+    private void skipSpace() {
+        while ((position < json.length()) && Character.isWhitespace(json.charAt(position)))
+            position++;
+    }
+
+    private boolean skip(char c) {
+        skipSpace();
+        if ((position < json.length()) && (json.charAt(position) == c)) {
+            position++;
+            return(true);
+        }
+        return(false);
+    }
+
+    private void expect(char c) {
+        if (!skip(c))
+            throw new IllegalArgumentException("Invalid JSON: expected '" + c + "' at " + position);
+    }
+
+    private void expectEnd() {
+        skipSpace();
+        if (position < json.length())
+            throw new IllegalArgumentException("Invalid JSON: unexpected text at " + position);
+    }
+
+    private String readString() {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        char c;
+        while (position < json.length()) {
+            c = json.charAt(position++);
+            if (c == '"')
+                return(value.toString());
+            if (c == '\\') {
+                if (position >= json.length())
+                    break;
+                c = json.charAt(position++);
+                switch (c) {
+                    case 'n': value.append('\n'); break;
+                    case 't': value.append('\t'); break;
+                    case 'r': value.append('\r'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'u':
+                        if (position + 4 > json.length())
+                            throw new IllegalArgumentException("Invalid JSON: bad escape at " + position);
+                        value.append((char)Integer.parseInt(json.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default: value.append(c); break;
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Invalid JSON: unterminated string");
+    }
+
+    /* A string, number, boolean or array of them, as a string. */
+    private String readValue() {
+        skipSpace();
+        if (position >= json.length())
+            throw new IllegalArgumentException("Invalid JSON: missing value");
+        char c = json.charAt(position);
+        if (c == '"')
+            return(readString());
+        if (c == '[') {
+            position++;
+            StringBuilder list = new StringBuilder();
+            if (!skip(']')) {
+                do {
+                    if (list.length() > 0)
+                        list.append(',');
+                    list.append(readValue());
+                } while (skip(','));
+                expect(']');
+            }
+            return(list.toString());
+        }
+        if ((c == '{') || (c == ']') || (c == '}') || (c == ',') || (c == ':'))
+            throw new IllegalArgumentException("Invalid JSON: unexpected '" + c + "' at " + position);
+        int start = position;
+        while ((position < json.length()) && ",}] \t\r\n".indexOf(json.charAt(position)) < 0)
+            position++;
+        return(json.substring(start, position));
+    }
+}
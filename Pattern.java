@@ -4,25 +4,51 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.awt.datatransfer.*;
+import java.util.List;
+import java.util.concurrent.*;
 import javax.swing.*;
-import polygo.Geometry.*;
 
 
 /* Pattern is the graphical implementation of a nested polygon pattern. */
 public class Pattern extends JPanel implements ClipboardOwner {
     DrawingScheme drawingScheme;
+    // Renderer for synchronous renders (renderImage).
+    private final PatternRenderer renderer = new PatternRenderer();
+    // The rendered pattern, and the version of the drawing scheme it was rendered from.
+    // Repaints that change neither the scheme nor the panel size just copy this image.
+    private BufferedImage cachedImage;
+    private long cachedVersion = -1;
+    // Coarse, low resolution version of a pattern that is still being rendered.
+    private BufferedImage previewImage;
+    private long previewVersion = -1;
+    // Map of the regions of the pattern, kept while its shapes stay the same. When only
+    // colors change, the pattern is recolored from it instead of rendered again.
+    private RegionMap regionMap;
+    // Rendering is done one pattern at a time on a background thread, so the GUI stays
+    // responsive. renderWorker is the most recently requested render, if still running.
+    private final ExecutorService renderExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PolyGo renderer");
+            thread.setDaemon(true);
+            return thread;
+        }});
+    private RenderWorker renderWorker;
+    private RegionWorker regionWorker;
+    private final RenderStatistics statistics = new RenderStatistics();
+    // Renderers used by the background render thread only.
+    private final PatternRenderer previewRenderer = new PatternRenderer();
+    private final PatternRenderer workerRenderer = new PatternRenderer(statistics);
     
     private static class DrawingParameters {
-        // Margin from edges of panel.
-        static final int CANVAS_MARGIN = 10;
-        // Minimum displacement between neighbor polygons. When reached this
-        // value, stop drawing.
-        static final double MIN_DISPLACEMENT = 0.1;
+        // The coarse preview is rendered at 1/PREVIEW_SCALE of the full resolution.
+        static final int PREVIEW_SCALE = 4;
     }
 
     public Pattern(DrawingScheme drawingSchemeIn) {
         super();
         drawingScheme = drawingSchemeIn;
+        // The preview is drawn at a reduced scale, so its levels become invisible sooner.
+        previewRenderer.setOutputScale(1d / DrawingParameters.PREVIEW_SCALE);
     }
 
     /* Update pattern with a new drawing scheme. */
@@ -31,12 +57,27 @@ public class Pattern extends JPanel implements ClipboardOwner {
         update();
     }
     
-    public void copyToClipboard() {  
-       BufferedImage bufImage = new BufferedImage(getSize().width, getSize().height,BufferedImage.TYPE_INT_RGB);  
-       paint(bufImage.createGraphics());
-       TransferableImage trans = new TransferableImage(bufImage);
-       Clipboard c = Toolkit.getDefaultToolkit().getSystemClipboard();
-       c.setContents( trans, this );
+    /* Render the pattern at the given size on the calling thread and return the image. */
+    public BufferedImage renderImage(int width, int height) {
+        return(renderer.render(drawingScheme.snapshot(), width, height));
+    }
+
+    /* Copy the pattern, at the size of the panel, to the clipboard. It is rendered in the
+    background (see ExportQueue), from the drawing scheme as it is now. */
+    public void copyToClipboard() {
+       final SchemeSnapshot scheme = drawingScheme.snapshot();
+       final BufferedImage bufImage = new BufferedImage(Math.max(1, getSize().width), Math.max(1, getSize().height),
+           BufferedImage.TYPE_INT_RGB);
+       ExportQueue.getQueue().submit(new ExportQueue.Job("Copying the pattern", "Problem copying the pattern.") {
+           @Override boolean run(RenderProgress progress) {
+               return(new PatternRenderer(statistics).render(scheme, bufImage, progress));
+           }
+
+           @Override void completed() {
+               TransferableImage trans = new TransferableImage(bufImage);
+               Clipboard c = Toolkit.getDefaultToolkit().getSystemClipboard();
+               c.setContents( trans, Pattern.this );
+           }});
     }  
 
     public void lostOwnership( Clipboard clip, Transferable trans ) {
@@ -79,152 +120,193 @@ public class Pattern extends JPanel implements ClipboardOwner {
     }
 
     
+    /* Counters of rendering work done by this pattern. */
+    public RenderStatistics getStatistics() {
+        return statistics;
+    }
+
     @Override public void paintComponent(Graphics g) {
         super.paintComponent(g);
-        Graphics2D g2 = (Graphics2D) g;
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-            RenderingHints.VALUE_ANTIALIAS_ON);
-        g2.setRenderingHint(RenderingHints.KEY_RENDERING,
-            RenderingHints.VALUE_RENDER_SPEED);
-        //RenderingHints.);
-        // Fill the whole panel with the background color.
-        g2.setColor(drawingScheme.backgroundColor);
-        g2.fillRect(0, 0, getWidth(), getHeight());
-        // Take the drawing scheme's base polygon (in arbitrary units), and scale it to fit
-        // the current dimensions of the drawing panel.
-        PolygonD basePolygon = Geometry.scalePolygon(drawingScheme.basePolygon, this.getSize(), DrawingParameters.CANVAS_MARGIN);
-        // Need to keep track of which iteration is being drawn in order to select the right colors
-        int iteration = 0;
-        boolean reachedCenter = false;
-        PolygonD currentPolygon, nextPolygon, nextNextPolygon;
-        currentPolygon = basePolygon;
-        while (!reachedCenter) {
-            iteration++;
-            // Calculate the vertices of the next polygon in the pattern.
-            nextPolygon = Geometry.findNextPolygon(currentPolygon, drawingScheme, DrawingParameters.MIN_DISPLACEMENT);
-            // nextPolygon == null means the center has been reached, so stop.
-            // Also stop if reached the requested depth.
-            if ((nextPolygon == null) 
-                    || (!drawingScheme.infinite && (iteration > drawingScheme.iterations))) {
-                reachedCenter = true;
-            } else {
-                if (!drawingScheme.infinite && (iteration == drawingScheme.iterations)) {
-                    nextNextPolygon = null;
-                } else {
-                    nextNextPolygon = Geometry.findNextPolygon(nextPolygon, drawingScheme, DrawingParameters.MIN_DISPLACEMENT);
-                }
-                fillSpaceBetweenPolygons(g2, currentPolygon, nextPolygon, nextNextPolygon, drawingScheme, iteration - 1);
-                drawPolygon(g2, currentPolygon, drawingScheme, iteration - 1);
-                drawPolygon(g2, nextPolygon, drawingScheme, iteration);
-                currentPolygon = nextPolygon;
-            }
-        }
-        // Fill the last polygon.
-        if (drawingScheme.innerFill) {
-            g2.setColor(drawingScheme.innerFillColor);
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0)
+            return;
+        if (isCurrent(cachedImage, cachedVersion, width, height, 1)) {
+            statistics.cacheHit();
+            g.drawImage(cachedImage, 0, 0, null);
         } else {
-            g2.setColor(drawingScheme.backgroundColor);
+            // Start rendering in the background, and meanwhile show the best image available:
+            // a preview of the new pattern, or else the previous pattern.
+            requestRender(width, height);
+            if (isCurrent(previewImage, previewVersion, width, height, DrawingParameters.PREVIEW_SCALE)) {
+                ((Graphics2D)g).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(previewImage, 0, 0, width, height, null);
+            } else if (cachedImage != null) {
+                g.setColor(drawingScheme.backgroundColor);
+                g.fillRect(0, 0, width, height);
+                g.drawImage(cachedImage, 0, 0, null);
+            }
         }
-        g2.fillPolygon(currentPolygon.toIntPolygon());
-        drawPolygon(g2, currentPolygon, drawingScheme, iteration);
+        if (RenderStatistics.PRINT)
+            System.out.println(statistics);
     }
 
-    public void update() {
-        repaint();
+    /* Check whether an image was rendered from the current drawing scheme at the current size
+    (or at a fraction of it, for preview images). */
+    private boolean isCurrent(BufferedImage image, long imageVersion, int width, int height, int scale) {
+        return((image != null) && (imageVersion == drawingScheme.getVersion())
+            && (image.getWidth() == previewSize(width, scale)) && (image.getHeight() == previewSize(height, scale)));
     }
 
-    /* Draw one polygon in the pattern based on the drawing scheme */
-    private static void drawPolygon(Graphics2D g2, PolygonD polygon, DrawingScheme drawingScheme, int iteration) {
-        int numSides = drawingScheme.numSides;
-        int lineWidth = drawingScheme.lineWidth;
-        Stroke stroke = new BasicStroke((float)lineWidth, BasicStroke.CAP_ROUND, BasicStroke.CAP_ROUND);
-        int nextIndex;
-        Color lineColor = null;
-        for (int s = 0; s < numSides; s++) {
-            switch (drawingScheme.lineColorScheme) {
-                case ONE_COLOR:
-                    lineColor = drawingScheme.lineColors.get(0);
-                    break;
-                case ONE_SIDE_ONE_COLOR:
-                    lineColor = drawingScheme.lineColors.get(s);
-                    break;
-                case ONE_POLYGON_ONE_COLOR:
-                    // "iteration" represents the number of polygons drawn so far.
-                    lineColor = drawingScheme.lineColors.get(iteration % drawingScheme.lineColors.size());
-                    break;
-                case CUSTOM:
-                    // Count the total number of sides drawn up to now.
-                    lineColor = drawingScheme.lineColors.get((iteration * numSides + s) % drawingScheme.lineColors.size());
-                    break;
-                case NONE:
-                    break;
-            }
-            if (lineColor != null) {
-                g2.setColor(lineColor);
-                // Set the line width.
-                g2.setStroke(stroke);
-                nextIndex = (s + 1) % numSides;
-                // Draw each line separately and not the whole polygon because each side might have a different color.
-                g2.drawLine((int)Math.round(polygon.get(s).x), (int)Math.round(polygon.get(s).y),
-                        (int)Math.round(polygon.get(nextIndex).x), (int)Math.round(polygon.get(nextIndex).y));
-            }
-        } // sides
+    private static int previewSize(int size, int scale) {
+        return((size + scale - 1) / scale);
     }
 
-    /* Fill the space between the sides of two adjacent polygons */
-    private static void fillSpaceBetweenPolygons(Graphics2D g2, PolygonD outerPolygon,
-        PolygonD innerPolygon, PolygonD innerInnerPolygon, DrawingScheme drawingScheme, int iteration) {
-        int numSides = drawingScheme.numSides;
-        // fillPolygon is an integer polygon.
-        Polygon fillPolygon = new Polygon();
-        Color fillColor = null;
-        Point outerPolygonPointRounded, innerPolygonPoint1Rounded, innerPolygonPoint2Rounded,
-            innerInnerPolygonPointRounded;
-        for (int s = 0; s < numSides; s++) {
-            fillPolygon.reset();
-            // Add two points from the inner polygon and one from the outer polygon.
-            innerPolygonPoint1Rounded = innerPolygon.get(s).toIntPoint();
-            fillPolygon.addPoint(innerPolygonPoint1Rounded.x, innerPolygonPoint1Rounded.y);
-            if (drawingScheme.direction == DrawingScheme.Direction.CLOCKWISE) {
-                outerPolygonPointRounded = outerPolygon.get((s + 1) % numSides).toIntPoint();
-            } else { // counterclockwise
-                outerPolygonPointRounded = outerPolygon.get(s).toIntPoint();
-            }
-            fillPolygon.addPoint(outerPolygonPointRounded.x, outerPolygonPointRounded.y);
-            innerPolygonPoint2Rounded = innerPolygon.get((s + 1) % numSides).toIntPoint();
-            fillPolygon.addPoint(innerPolygonPoint2Rounded.x, innerPolygonPoint2Rounded.y);
-            switch (drawingScheme.fillColorScheme) {
-                case ONE_COLOR:
-                    fillColor = drawingScheme.fillColors.get(0);
-                    break;
-                case ONE_SIDE_ONE_COLOR:
-                    fillColor = drawingScheme.fillColors.get(s);
-                    break;
-                case ONE_POLYGON_ONE_COLOR:
-                    // "iteration" represents the number of polygons drawn so far.
-                    fillColor = drawingScheme.fillColors.get(iteration % drawingScheme.fillColors.size());
-                    break;
-                case CUSTOM:
-                    // Count the total number of sides drawn up to now.
-                    fillColor = drawingScheme.fillColors.get((iteration * numSides + s) % drawingScheme.fillColors.size());
-                    break;
-                case NONE:
-                    fillColor = drawingScheme.backgroundColor;
-                    break;
+    /* Start rendering the current drawing scheme in the background, unless that is already
+    under way. A render of an older scheme or size is cancelled, since its result would
+    never be shown. If only colors changed since the regions were mapped, the pattern is
+    recolored from the map instead. */
+    private void requestRender(int width, int height) {
+        long version = drawingScheme.getVersion();
+        if (renderWorker != null) {
+            if ((renderWorker.version == version) && (renderWorker.width == width) && (renderWorker.height == height))
+                return;
+            renderWorker.cancel(false);
+            statistics.renderCancelled();
+        }
+        // Mapping regions waits for the new pattern; it is requested again once rendered.
+        if (regionWorker != null) {
+            regionWorker.cancel(false);
+            regionWorker = null;
+        }
+        // The worker gets a snapshot of the scheme, since the original is modified by the GUI.
+        SchemeSnapshot scheme = drawingScheme.snapshot();
+        RegionMap regions = ((regionMap != null) && regionMap.fits(scheme, width, height)) ? regionMap : null;
+        renderWorker = new RenderWorker(scheme, width, height, regions);
+        renderExecutor.execute(renderWorker);
+    }
+
+    /* Renders a pattern in the background: first a coarse preview at low resolution, which is
+    published as soon as it is ready, then the full resolution image. A pattern with a map of
+    its regions is recolored from it, without a preview. */
+    private class RenderWorker extends SwingWorker<BufferedImage, BufferedImage> implements RenderMonitor {
+        final SchemeSnapshot scheme;
+        final long version;
+        final int width, height;
+        final RegionMap regions;
+
+        RenderWorker(SchemeSnapshot scheme, int width, int height, RegionMap regions) {
+            this.scheme = scheme;
+            this.version = scheme.getVersion();
+            this.width = width;
+            this.height = height;
+            this.regions = regions;
+        }
+
+        @Override protected BufferedImage doInBackground() {
+            if (regions != null) {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                workerRenderer.recolor(regions, scheme, image);
+                return(image);
             }
-            // I added a point from the inner inner polygon to avoid some points along the side
-            // of the inner polygon remaining blank. Therefore, the polygon being painted is in fact
-            // a four sided polygon. Comment out the next statement to see the blank lines.
-            if (innerInnerPolygon != null) {
-                if (drawingScheme.direction == DrawingScheme.Direction.CLOCKWISE) {
-                    innerInnerPolygonPointRounded = innerInnerPolygon.get((s + 1) % numSides).toIntPoint();
-                } else {
-                    innerInnerPolygonPointRounded = innerInnerPolygon.get(s).toIntPoint();
+            long start = System.nanoTime();
+            int scale = DrawingParameters.PREVIEW_SCALE;
+            BufferedImage preview = new BufferedImage(previewSize(width, scale), previewSize(height, scale),
+                BufferedImage.TYPE_INT_RGB);
+            Graphics2D previewGraphics = preview.createGraphics();
+            previewGraphics.scale(1d / scale, 1d / scale);
+            boolean completed = previewRenderer.render(scheme, width, height, previewGraphics, this);
+            previewGraphics.dispose();
+            if (!completed)
+                return(null);
+            publish(preview);
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            completed = workerRenderer.render(scheme, image, this);
+            if (!completed)
+                return(null);
+            statistics.cacheMiss(System.nanoTime() - start);
+            return(image);
+        }
+
+        @Override protected void process(List<BufferedImage> previews) {
+            if (isCancelled())
+                return;
+            previewImage = previews.get(previews.size() - 1);
+            previewVersion = version;
+            repaint();
+        }
+
+        @Override protected void done() {
+            if (renderWorker == this)
+                renderWorker = null;
+            if (isCancelled())
+                return;
+            try {
+                BufferedImage image = get();
+                if (image != null) {
+                    cachedImage = image;
+                    cachedVersion = version;
+                    previewImage = null;
+                    repaint();
+                    requestRegions();
                 }
-                fillPolygon.addPoint(innerInnerPolygonPointRounded.x, innerInnerPolygonPointRounded.y);
+            } catch (ExecutionException e) {
+                renderFailed(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            g2.setColor(fillColor);
-            g2.fillPolygon(fillPolygon);
         }
+
+        /* Map the regions of the rendered pattern, unless the current map still fits it. */
+        private void requestRegions() {
+            if ((renderWorker != null) || ((regionMap != null) && regionMap.fits(scheme, width, height)))
+                return;
+            regionWorker = new RegionWorker(scheme, width, height);
+            renderExecutor.execute(regionWorker);
+        }
+    }
+
+    /* Maps the regions of a pattern in the background, after it has been rendered. */
+    private class RegionWorker extends SwingWorker<RegionMap, Void> implements RenderMonitor {
+        final SchemeSnapshot scheme;
+        final int width, height;
+
+        RegionWorker(SchemeSnapshot scheme, int width, int height) {
+            this.scheme = scheme;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override protected RegionMap doInBackground() {
+            return(workerRenderer.renderRegions(scheme, width, height, this));
+        }
+
+        @Override protected void done() {
+            if (regionWorker == this)
+                regionWorker = null;
+            if (isCancelled())
+                return;
+            try {
+                RegionMap regions = get();
+                if (regions != null)
+                    regionMap = regions;
+            } catch (ExecutionException e) {
+                renderFailed(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* Report a background render or region map that failed. The pattern is left as it was
+    drawn last, and drawn again with the next change. */
+    private void renderFailed(ExecutionException e) {
+        statistics.renderFailed();
+        System.err.println("Rendering the pattern failed: " + e.getCause());
+    }
+
+    public void update() {
+        repaint();
     }
 } // Pattern
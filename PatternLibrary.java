@@ -0,0 +1,362 @@
+package polygo;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/* PatternLibrary is a single file holding many drawing schemes, each with a name and an
+optional thumbnail image, read through a memory-mapped buffer so that any one scheme can be
+listed, found or loaded without reading (let alone decoding) the others. The file is:
+    header: the magic bytes "PLGL", major and minor version (shorts), number of entries (int),
+        size of the thumbnails (int, 0 if none), offsets of the index and of the names (longs)
+    records: each scheme in the binary format of SchemeFormat
+    thumbnails: PNG images
+    names: UTF-8, one after the other
+    index: one fixed-size entry per scheme, sorted by name: offset and length of its record,
+        of its thumbnail (length 0 if none) and of its name
+Libraries are written once, by a PatternLibrary.Writer, and then only read. */
+public class PatternLibrary {
+    private static final byte[] MAGIC = {'P', 'L', 'G', 'L'};
+    private static final int MAJOR_VERSION = 1;
+    private static final int MINOR_VERSION = 0;
+    private static final int HEADER_SIZE = MAGIC.length + 2 + 2 + 4 + 4 + 8 + 8;
+    // Record offset and length, thumbnail offset and length, name offset and length.
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 8 + 4 + 4 + 4;
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+    // Order of the names in the index.
+    private static final Comparator<String> NAME_ORDER = String.CASE_INSENSITIVE_ORDER;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int thumbnailSize;
+    private final long indexOffset, namesOffset;
+
+    /* Open a library file. It stays mapped (and so cannot be deleted on some systems) until
+    the library is garbage collected. */
+    public PatternLibrary(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() > Integer.MAX_VALUE)
+                throw new IOException("Pattern library too large: " + file);
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            in.close(); // the mapping remains valid
+        }
+        for (int i = 0; i < MAGIC.length; i++)
+            if ((buffer.limit() < HEADER_SIZE) || (buffer.get(i) != MAGIC[i]))
+                throw new IOException("Not a pattern library: " + file);
+        int majorVersion = buffer.getShort(MAGIC.length) & 0xffff;
+        if (majorVersion != MAJOR_VERSION)
+            throw new IOException("Pattern library version " + majorVersion + " is not supported");
+        size = buffer.getInt(MAGIC.length + 4);
+        thumbnailSize = buffer.getInt(MAGIC.length + 8);
+        namesOffset = buffer.getLong(MAGIC.length + 12);
+        indexOffset = buffer.getLong(MAGIC.length + 20);
+        if ((size < 0) || (indexOffset < HEADER_SIZE) || (namesOffset < HEADER_SIZE) || (namesOffset > indexOffset)
+                || (indexOffset + (long)size * INDEX_ENTRY_SIZE > buffer.limit()))
+            throw new IOException("Damaged pattern library: " + file);
+    }
+
+    public File getFile() {
+        return(file);
+    }
+
+    /* Number of schemes in the library. */
+    public int size() {
+        return(size);
+    }
+
+    /* Largest width or height of the thumbnails, 0 if the library has none. */
+    public int getThumbnailSize() {
+        return(thumbnailSize);
+    }
+
+    /* Name of a scheme. The schemes are in name order (ignoring case). */
+    public String getName(int index) {
+        int entry = entry(index);
+        return(string(buffer.getInt(entry + 24), buffer.getInt(entry + 28)));
+    }
+
+    /* Read one scheme. */
+    public DrawingScheme getScheme(int index) throws IOException {
+        int entry = entry(index);
+        return(SchemeFormat.read(slice(buffer.getLong(entry), buffer.getInt(entry + 8))));
+    }
+
+    /* The thumbnail of a scheme as a PNG image, or null if it has none. */
+    public ByteBuffer getThumbnailData(int index) throws IOException {
+        int entry = entry(index);
+        int length = buffer.getInt(entry + 20);
+        return((length == 0) ? null : slice(buffer.getLong(entry + 12), length));
+    }
+
+    /* The thumbnail of a scheme, or null if it has none. */
+    public BufferedImage getThumbnail(int index) throws IOException {
+        ByteBuffer data = getThumbnailData(index);
+        if (data == null)
+            return(null);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return(ImageIO.read(new ByteArrayInputStream(bytes)));
+    }
+
+    /* Index of the scheme with the given name (ignoring case), or -1 if there is none. The
+    index is searched by halves, reading only the names on the way. */
+    public int indexOf(String name) {
+        int low = 0, high = size - 1, middle, order;
+        while (low <= high) {
+            middle = (low + high) >>> 1;
+            order = NAME_ORDER.compare(getName(middle), name);
+            if (order < 0)
+                low = middle + 1;
+            else if (order > 0)
+                high = middle - 1;
+            else
+                return(middle);
+        }
+        return(-1);
+    }
+
+    /* Indexes of the schemes whose names contain the given text (ignoring case). Only the
+    names are read. */
+    public List<Integer> search(String text) {
+        String lowerCaseText = text.toLowerCase();
+        List<Integer> found = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++)
+            if (getName(i).toLowerCase().contains(lowerCaseText))
+                found.add(i);
+        return(found);
+    }
+
+    private int entry(int index) {
+        if ((index < 0) || (index >= size))
+            throw new IndexOutOfBoundsException("No pattern " + index + " in " + file);
+        return((int)(indexOffset + (long)index * INDEX_ENTRY_SIZE));
+    }
+
+    /* A view of part of the file. Views are independent, so several threads can read at once. */
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        if ((offset < HEADER_SIZE) || (length < 0) || (offset + length > buffer.limit()))
+            throw new IOException("Damaged pattern library: " + file);
+        ByteBuffer view = buffer.duplicate();
+        view.position((int)offset);
+        view.limit((int)offset + length);
+        return(view.slice());
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position((int)(namesOffset + offset));
+        view.get(bytes);
+        return(new String(bytes, NAME_CHARSET));
+    }
+
+    /* Writes a library file: add the schemes, then finish. Names must be unique (ignoring
+    case). Each record and thumbnail is written as it is added; only the index is kept in
+    memory until the end. */
+    public static class Writer {
+        private final File file;
+        private final RandomAccessFile out;
+        private final FileChannel channel;
+        private final int thumbnailSize;
+        private final PatternRenderer renderer = new PatternRenderer();
+        private final List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        private long position = HEADER_SIZE;
+
+        private static class IndexEntry {
+            String name;
+            long recordOffset, thumbnailOffset;
+            int recordLength, thumbnailLength;
+        }
+
+        /* A writer of a new library with thumbnails of the given size (the largest width or
+        height, in pixels), or none if 0. */
+        public Writer(File file, int thumbnailSize) throws IOException {
+            this.file = file;
+            this.thumbnailSize = thumbnailSize;
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(0);
+            channel = out.getChannel();
+        }
+
+        public void add(String name, DrawingScheme drawingScheme) throws IOException {
+            IndexEntry entry = new IndexEntry();
+            entry.name = name;
+            ByteBuffer record = SchemeFormat.toBinary(drawingScheme);
+            entry.recordOffset = position;
+            entry.recordLength = record.remaining();
+            write(record);
+            if (thumbnailSize > 0) {
+                BufferedImage thumbnail = renderer.render(drawingScheme.snapshot(), thumbnailSize, thumbnailSize);
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(thumbnail, "png", png);
+                entry.thumbnailOffset = position;
+                entry.thumbnailLength = png.size();
+                write(ByteBuffer.wrap(png.toByteArray()));
+            }
+            entries.add(entry);
+        }
+
+        /* Write the names and the index, and close the file. */
+        public void finish() throws IOException {
+            try {
+                Collections.sort(entries, new Comparator<IndexEntry>() {
+                    @Override public int compare(IndexEntry a, IndexEntry b) {
+                        return(NAME_ORDER.compare(a.name, b.name));
+                    }});
+                for (int e = 1; e < entries.size(); e++)
+                    if (NAME_ORDER.compare(entries.get(e - 1).name, entries.get(e).name) == 0)
+                        throw new IOException("Two patterns named " + entries.get(e).name);
+                long namesOffset = position;
+                ByteArrayOutputStream names = new ByteArrayOutputStream();
+                ByteBuffer index = ByteBuffer.allocate(entries.size() * INDEX_ENTRY_SIZE);
+                for (IndexEntry entry : entries) {
+                    byte[] name = entry.name.getBytes(NAME_CHARSET);
+                    index.putLong(entry.recordOffset);
+                    index.putInt(entry.recordLength);
+                    index.putLong(entry.thumbnailOffset);
+                    index.putInt(entry.thumbnailLength);
+                    index.putInt(names.size());
+                    index.putInt(name.length);
+                    names.write(name);
+                }
+                write(ByteBuffer.wrap(names.toByteArray()));
+                long indexOffset = position;
+                index.flip();
+                write(index);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC);
+                header.putShort((short)MAJOR_VERSION);
+                header.putShort((short)MINOR_VERSION);
+                header.putInt(entries.size());
+                header.putInt(thumbnailSize);
+                header.putLong(namesOffset);
+                header.putLong(indexOffset);
+                header.flip();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+            } finally {
+                out.close();
+            }
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining())
+                position += channel.write(data, position);
+        }
+    }
+
+    /* Create or read a library from the command line. Run with:
+        java -cp PolyGo.jar polygo.PolyGo --library create LIBRARY [-thumbnails SIZE] files or directories...
+        java -cp PolyGo.jar polygo.PolyGo --library list LIBRARY [TEXT]
+        java -cp PolyGo.jar polygo.PolyGo --library extract LIBRARY NAME FILE
+    Directories are searched (with their subdirectories) for PolyGo files, which are named in
+    the library by their paths from the directory given, without the extension. */
+    public static void main(String[] args) {
+        try {
+            if ((args.length >= 3) && args[0].equals("create")) {
+                create(args);
+            } else if ((args.length == 2 || args.length == 3) && args[0].equals("list")) {
+                PatternLibrary library = new PatternLibrary(new File(args[1]));
+                long start = System.nanoTime();
+                List<Integer> found = new ArrayList<Integer>();
+                if (args.length == 3) {
+                    found = library.search(args[2]);
+                } else {
+                    for (int i = 0; i < library.size(); i++)
+                        found.add(i);
+                }
+                for (int i : found)
+                    System.out.println(library.getName(i));
+                System.out.println(String.format("%d of %d patterns (%.1f ms)", found.size(), library.size(),
+                    (System.nanoTime() - start) / 1e6));
+            } else if ((args.length == 4) && args[0].equals("extract")) {
+                PatternLibrary library = new PatternLibrary(new File(args[1]));
+                int index = library.indexOf(args[2]);
+                if (index < 0)
+                    throw new IOException("No pattern named " + args[2]);
+                SchemeFormat.write(library.getScheme(index), new File(args[3]));
+            } else {
+                System.err.println("Usage: java -cp PolyGo.jar polygo.PolyGo --library create LIBRARY [-thumbnails SIZE] files or directories...");
+                System.err.println("       java -cp PolyGo.jar polygo.PolyGo --library list LIBRARY [TEXT]");
+                System.err.println("       java -cp PolyGo.jar polygo.PolyGo --library extract LIBRARY NAME FILE");
+                System.exit(2);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void create(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int thumbnailSize = 0;
+        int first = 2;
+        if ((args.length > 4) && args[2].equals("-thumbnails")) {
+            try {
+                thumbnailSize = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid thumbnail size " + args[3]);
+            }
+            first = 4;
+        }
+        List<File> files = new ArrayList<File>();
+        List<String> names = new ArrayList<String>();
+        for (int a = first; a < args.length; a++) {
+            File file = new File(args[a]);
+            if (file.isDirectory())
+                addDirectory(file, "", files, names);
+            else
+                addFile(file, "", files, names);
+        }
+        long start = System.nanoTime();
+        Writer writer = new Writer(new File(args[1]), thumbnailSize);
+        int failed = 0;
+        for (int f = 0; f < files.size(); f++) {
+            try {
+                writer.add(names.get(f), SchemeFormat.read(files.get(f)));
+            } catch (IOException e) {
+                failed++;
+                System.err.println(files.get(f) + ": " + e.getMessage());
+            }
+        }
+        writer.finish();
+        System.out.println(String.format("%d patterns added, %d failed, %d bytes (%.1f s)", files.size() - failed, failed,
+            new File(args[1]).length(), (System.nanoTime() - start) / 1e9));
+    }
+
+    private static void addDirectory(File directory, String relativePath, List<File> files, List<String> names) {
+        File[] children = directory.listFiles();
+        if (children == null)
+            return;
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory())
+                addDirectory(child, relativePath + child.getName() + "/", files, names);
+            else if (child.getName().endsWith("." + FileHandling.POLYGO_FILE_EXTENSION))
+                addFile(child, relativePath, files, names);
+        }
+    }
+
+    private static void addFile(File file, String relativePath, List<File> files, List<String> names) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        files.add(file);
+        names.add(relativePath + ((dot > 0) ? name.substring(0, dot) : name));
+    }
+}
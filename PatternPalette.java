@@ -0,0 +1,184 @@
+package polygo;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* PatternPalette is an indexed color palette for rendering a pattern with one byte per
+pixel instead of four. A pattern only uses the colors of its drawing scheme, and the
+blends of these colors made by antialiasing. The palette holds the colors, and for every
+pair of colors a ramp of blends between them. Rendered (RGB) pixels are mapped to the
+palette entry of the same color, or else to the nearest one. */
+public class PatternPalette {
+    // Most colors in an 8-bit palette.
+    static final int MAX_COLORS = 256;
+    // Fewest blends between two colors for antialiased edges to look smooth. A drawing
+    // scheme with too many colors for this does not fit in a palette.
+    static final int MIN_BLENDS = 3;
+    // Most blends between two colors (more are not distinguishable at the edges).
+    static final int MAX_BLENDS = 15;
+
+    private final IndexColorModel colorModel;
+    // Palette entries by color, as an open-addressing hash table: RGB keys (with the
+    // top byte set, so that no key is 0, the empty slot) and palette indices.
+    private final int[] keys;
+    private final byte[] indices;
+    private final int[] reds, greens, blues;
+
+    /* The palette of an indexed image, such as one created by another palette. */
+    public PatternPalette(IndexColorModel colorModel) {
+        this.colorModel = colorModel;
+        int size = colorModel.getMapSize();
+        reds = new int[size];
+        greens = new int[size];
+        blues = new int[size];
+        keys = new int[4 * MAX_COLORS];
+        indices = new byte[keys.length];
+        int rgb, slot;
+        for (int i = 0; i < size; i++) {
+            rgb = colorModel.getRGB(i);
+            reds[i] = (rgb >> 16) & 0xff;
+            greens[i] = (rgb >> 8) & 0xff;
+            blues[i] = rgb & 0xff;
+            slot = findSlot(rgb | 0xff000000);
+            if (keys[slot] == 0) {
+                keys[slot] = rgb | 0xff000000;
+                indices[slot] = (byte)i;
+            }
+        }
+    }
+
+    /* The palette for rendering a drawing scheme, or null if its colors do not fit in one. */
+    public static PatternPalette forScheme(SchemeSnapshot drawingScheme) {
+        List<Color> colors = new ArrayList<Color>(usedColors(drawingScheme));
+        int numColors = colors.size();
+        int pairs = numColors * (numColors - 1) / 2;
+        int blends = (pairs == 0) ? 0 : Math.min(MAX_BLENDS, (MAX_COLORS - numColors) / pairs);
+        if ((pairs > 0) && (blends < MIN_BLENDS))
+            return(null);
+        int size = numColors + pairs * blends;
+        byte[] r = new byte[size], g = new byte[size], b = new byte[size];
+        int index = 0;
+        for (Color color : colors) {
+            r[index] = (byte)color.getRed();
+            g[index] = (byte)color.getGreen();
+            b[index] = (byte)color.getBlue();
+            index++;
+        }
+        Color first, second;
+        double t;
+        for (int i = 0; i < numColors; i++) {
+            for (int j = i + 1; j < numColors; j++) {
+                first = colors.get(i);
+                second = colors.get(j);
+                for (int k = 1; k <= blends; k++) {
+                    t = (double)k / (blends + 1);
+                    r[index] = (byte)Math.round(first.getRed() + t * (second.getRed() - first.getRed()));
+                    g[index] = (byte)Math.round(first.getGreen() + t * (second.getGreen() - first.getGreen()));
+                    b[index] = (byte)Math.round(first.getBlue() + t * (second.getBlue() - first.getBlue()));
+                    index++;
+                }
+            }
+        }
+        return(new PatternPalette(new IndexColorModel(8, size, r, g, b)));
+    }
+
+    /* The colors that the drawing scheme actually draws with. */
+    private static Set<Color> usedColors(SchemeSnapshot drawingScheme) {
+        Set<Color> colors = new LinkedHashSet<Color>();
+        colors.add(drawingScheme.backgroundColor);
+        if (drawingScheme.innerFill)
+            colors.add(drawingScheme.innerFillColor);
+        addUsedColors(colors, drawingScheme.lineColorScheme, drawingScheme.lineColors, drawingScheme.numSides);
+        addUsedColors(colors, drawingScheme.fillColorScheme, drawingScheme.fillColors, drawingScheme.numSides);
+        return(colors);
+    }
+
+    private static void addUsedColors(Set<Color> colors, DrawingScheme.ColorScheme colorScheme, List<Color> palette, int numSides) {
+        switch (colorScheme) {
+            case ONE_COLOR:
+                colors.add(palette.get(0));
+                break;
+            case ONE_SIDE_ONE_COLOR:
+                colors.addAll(palette.subList(0, Math.min(numSides, palette.size())));
+                break;
+            case ONE_POLYGON_ONE_COLOR:
+            case CUSTOM:
+                colors.addAll(palette);
+                break;
+            case NONE:
+                break;
+        }
+    }
+
+    public IndexColorModel getColorModel() {
+        return colorModel;
+    }
+
+    /* A new indexed image that uses this palette. */
+    public BufferedImage createImage(int width, int height) {
+        return(new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel));
+    }
+
+    /* Convert RGB pixels to palette indices. The cache holds the nearest entries found for
+    colors that are not in the palette; it is not shared between threads. */
+    public void toIndices(int[] pixels, byte[] result, int length, Map<Integer, Byte> cache) {
+        int previous = 0, rgb;
+        byte index = 0;
+        for (int i = 0; i < length; i++) {
+            rgb = pixels[i] | 0xff000000;
+            if ((rgb != previous) || (i == 0)) {
+                index = indexOf(rgb, cache);
+                previous = rgb;
+            }
+            result[i] = index;
+        }
+    }
+
+    /* A cache to pass to toIndices. */
+    public static Map<Integer, Byte> newCache() {
+        return(new HashMap<Integer, Byte>());
+    }
+
+    private byte indexOf(int rgb, Map<Integer, Byte> cache) {
+        int slot = findSlot(rgb);
+        if (keys[slot] == rgb)
+            return(indices[slot]);
+        Byte cached = cache.get(rgb);
+        if (cached != null)
+            return(cached);
+        byte nearest = nearest(rgb);
+        cache.put(rgb, nearest);
+        return(nearest);
+    }
+
+    private int findSlot(int rgb) {
+        int mask = keys.length - 1;
+        int slot = (rgb * 0x9E3779B9) >>> 22 & mask;
+        while ((keys[slot] != 0) && (keys[slot] != rgb))
+            slot = (slot + 1) & mask;
+        return(slot);
+    }
+
+    /* Index of the palette color closest to the given one (in RGB space). */
+    private byte nearest(int rgb) {
+        int red = (rgb >> 16) & 0xff, green = (rgb >> 8) & 0xff, blue = rgb & 0xff;
+        int best = 0, bestDistance = Integer.MAX_VALUE, distance, dr, dg, db;
+        for (int i = 0; i < reds.length; i++) {
+            dr = reds[i] - red;
+            dg = greens[i] - green;
+            db = blues[i] - blue;
+            distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return((byte)best);
+    }
+}
@@ -0,0 +1,1067 @@
+package polygo;
+
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Deflater;
+import polygo.Geometry.*;
+
+
+/* PatternRenderer draws a nested polygon pattern from a drawing scheme, at any size, onto
+any Graphics2D or image. It does not depend on Swing, so it can be used without a display
+(with java.awt.headless=true), for example by batch jobs. A renderer reuses its buffers from
+one render to the next, so it must be used by one thread at a time. */
+public class PatternRenderer {
+    // All the levels of the pattern, reused from one render to the next, and the geometry
+    // version of the drawing scheme and the size they were generated for. Changing only
+    // the colors does not generate them again.
+    private final NestedPolygonChain chain = new NestedPolygonChain();
+    private long levelsVersion = -1;
+    private int levelsWidth, levelsHeight, levelsFirst, levelsLast;
+    private double levelsMinSize, levelsScale;
+    // Range of levels rendered (see setLevelRange), firstLevel being -1 for the whole pattern.
+    private int firstLevel = -1, lastLevel;
+    // Size below which levels are left out (see RenderParameters.MIN_LEVEL_SIZE), in pixels
+    // at the output resolution, and the scale at which the levels are drawn.
+    private double minLevelSize = RenderParameters.MIN_LEVEL_SIZE;
+    private double outputScale = 1;
+    // Counters of the rendering work done, if requested.
+    private final RenderStatistics statistics;
+    // Pool that rasterizes the tiles of an image, and the pool shared by the renderers
+    // that were not given one.
+    private final ForkJoinPool pool;
+    private static ForkJoinPool sharedPool;
+
+    static class RenderParameters {
+        // Margin from edges of the canvas.
+        static final int CANVAS_MARGIN = 10;
+        // Minimum displacement between neighbor polygons. When reached this
+        // value, stop drawing.
+        static final double MIN_DISPLACEMENT = 0.1;
+        // Width and height of the tiles rendered in parallel.
+        static final int TILE_SIZE = 256;
+        // Height of the bands in which images are streamed to a file.
+        static final int BAND_HEIGHT = TILE_SIZE;
+        // Levels whose width and height are both below this size (in pixels at the output
+        // resolution) are not generated: each would cover less than a quarter of a pixel,
+        // and all the deeper levels lie inside it.
+        static final double MIN_LEVEL_SIZE = 0.5;
+        // Vector images leave out the levels below this size (in pixels at the exported size).
+        static final double VECTOR_MIN_LEVEL_SIZE = 1;
+        // Most vertices in all the levels of a pattern (16 bytes each). The deepest patterns
+        // that can be drawn (20 sides, 1 pixel of fixed displacement, on the largest images)
+        // have about 6.5 million.
+        static final int MAX_VERTICES = 8 * 1024 * 1024;
+    }
+
+    public PatternRenderer() {
+        this(null);
+    }
+
+    /* A renderer that records the work done for every render in the given statistics. */
+    public PatternRenderer(RenderStatistics statistics) {
+        this(statistics, null);
+    }
+
+    /* A renderer that rasterizes images on the given pool (the shared pool if null). */
+    public PatternRenderer(RenderStatistics statistics, ForkJoinPool pool) {
+        this.statistics = statistics;
+        this.pool = pool;
+    }
+
+    /* Set the size (in pixels at the output resolution) below which the levels at the center
+    of a pattern are left out, the innermost level kept being filled like the innermost
+    polygon. 0 draws all the levels. */
+    public void setMinLevelSize(double minLevelSize) {
+        this.minLevelSize = minLevelSize;
+    }
+
+    /* Set the scale at which the pattern is drawn on the graphics passed to render, such as
+    1/4 for a preview at a quarter of the size. The levels that would not be visible at that
+    resolution are left out. */
+    public void setOutputScale(double outputScale) {
+        this.outputScale = outputScale;
+    }
+
+    /* Render only the levels of the pattern from firstLevel to lastLevel (0 being the base
+    polygon), zoomed in so that level firstLevel fits the image as the base polygon does, or
+    the whole pattern again if firstLevel is -1. Only patterns with relative displacement can
+    be rendered by range: their levels are worked out directly (see Geometry.RelativeNesting),
+    so a range deep inside the pattern costs no more than one at the top. As for the whole
+    pattern, the levels too small to be seen are left out, and the innermost level drawn is
+    filled like the innermost polygon. */
+    public void setLevelRange(int firstLevel, int lastLevel) {
+        if ((firstLevel < -1) || ((firstLevel >= 0) && (lastLevel < firstLevel)))
+            throw new IllegalArgumentException("Invalid level range " + firstLevel + " to " + lastLevel);
+        this.firstLevel = firstLevel;
+        this.lastLevel = lastLevel;
+    }
+
+    /* Check that the drawing scheme can be rendered from level firstLevel on (see
+    setLevelRange), and throw an IllegalArgumentException if not. */
+    static void checkLevelRange(SchemeSnapshot drawingScheme, int firstLevel) {
+        if (drawingScheme.displacementType != DrawingScheme.DisplacementType.RELATIVE)
+            throw new IllegalArgumentException("Only patterns with relative displacement can be rendered by level range");
+        if (!drawingScheme.infinite && (firstLevel > drawingScheme.iterations))
+            throw new IllegalArgumentException("The pattern has no level " + firstLevel);
+    }
+
+    /* Number of levels of the pattern rendered last. */
+    int levels() {
+        return(chain.levels());
+    }
+
+    /* Render the pattern at the given size into a new image with indexed colors, or return null
+    if the colors of the pattern do not fit in a palette. */
+    public BufferedImage renderIndexed(SchemeSnapshot drawingScheme, int width, int height) {
+        PatternPalette palette = PatternPalette.forScheme(drawingScheme);
+        if (palette == null)
+            return(null);
+        BufferedImage image = palette.createImage(width, height);
+        render(drawingScheme, image);
+        return(image);
+    }
+
+    /* Render the pattern at the given size into a new image. */
+    public BufferedImage render(SchemeSnapshot drawingScheme, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        render(drawingScheme, image);
+        return(image);
+    }
+
+    /* Render the pattern over the whole of the given image. */
+    public void render(SchemeSnapshot drawingScheme, BufferedImage image) {
+        render(drawingScheme, image, null);
+    }
+
+    /* Render the pattern over the whole of the given image. The image is divided into tiles,
+    which are rasterized in parallel on the renderer's fork/join pool. The tiles do not depend
+    on the number of threads, so neither does the result. Returns false if the monitor (if any)
+    cancelled the render before it was completed. If the monitor is a RenderProgress, the
+    image is rendered a band at a time, and the monitor is told as each band is completed. */
+    public boolean render(SchemeSnapshot drawingScheme, BufferedImage image, RenderMonitor monitor) {
+        int width = image.getWidth(), height = image.getHeight();
+        if (!(monitor instanceof RenderProgress))
+            return(render(drawingScheme, width, height, image, 0, monitor));
+        int bandHeight = RenderParameters.BAND_HEIGHT;
+        int bands = (height + bandHeight - 1) / bandHeight;
+        for (int band = 0; band < bands; band++) {
+            int bandY = band * bandHeight;
+            // The band shares the pixels of the image.
+            if (!render(drawingScheme, width, height,
+                    image.getSubimage(0, bandY, width, Math.min(bandHeight, height - bandY)), bandY, monitor))
+                return(false);
+            progressed(monitor, band + 1, bands);
+        }
+        return(true);
+    }
+
+    /* Render one horizontal band of the pattern at the given size: the rows from bandY on, as
+    many as the band image holds (it must be as wide as the pattern). When bands start at
+    multiples of the tile size, they are identical to the same rows of the whole image.
+    The levels of the pattern are only generated once for all the bands. */
+    public boolean render(SchemeSnapshot drawingScheme, int width, int height, BufferedImage band, int bandY,
+            RenderMonitor monitor) {
+        FrameCounts counts = renderTiles(drawingScheme, width, height, band, bandY, monitor);
+        if (counts == null)
+            return(false);
+        if (statistics != null)
+            statistics.frameRendered(counts.stateChanges, counts.fillCalls, counts.overdraw);
+        return(true);
+    }
+
+    private FrameCounts renderTiles(SchemeSnapshot drawingScheme, int width, int height, BufferedImage band, int bandY,
+            RenderMonitor monitor) {
+        generateLevels(drawingScheme, width, height);
+        if (isCancelled(monitor))
+            return(null);
+        int tileSize = RenderParameters.TILE_SIZE;
+        int tilesAcross = (width + tileSize - 1) / tileSize;
+        int tilesDown = (Math.min(band.getHeight(), height - bandY) + tileSize - 1) / tileSize;
+        // Tiles of indexed images are rendered in RGB and then converted to the palette.
+        PatternPalette palette = (band.getColorModel() instanceof IndexColorModel)
+            ? new PatternPalette((IndexColorModel)band.getColorModel()) : null;
+        return(getPool().invoke(new TileTask(drawingScheme, width, height, band, palette, bandY, tilesAcross,
+            0, tilesAcross * tilesDown, monitor)));
+    }
+
+    /* Render the pattern at the given size as a PNG image, written to the stream a band at a
+    time. Only one band is held in memory, so the size of the image is not limited by the
+    memory available. */
+    public void writePng(SchemeSnapshot drawingScheme, int width, int height, OutputStream out) throws IOException {
+        writePng(drawingScheme, width, height, out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /* Like writePng above, with the given compression level (0-9). The bands are compressed
+    in parallel on the renderer's pool. The time spent on rendering and on encoding is
+    recorded in the statistics, if any. */
+    public void writePng(SchemeSnapshot drawingScheme, int width, int height, OutputStream out, int compressionLevel)
+            throws IOException {
+        writePng(drawingScheme, width, height, out, compressionLevel, 0, false, null);
+    }
+
+    /* Like writePng above, recording the resolution the image is meant to be printed at, in
+    dots per inch (none if 0). If indexed, and the colors of the pattern fit in a palette, the
+    image is rendered and written with indexed colors, one byte per pixel: a much smaller
+    file, but antialiased edges only get the nearest blend in the palette, so it is not
+    exactly the same image. Returns false if the monitor (if any) cancelled the render
+    before it was completed, in which case the image is left incomplete. If the monitor is a
+    RenderProgress, it is told as each band is written. */
+    public boolean writePng(SchemeSnapshot drawingScheme, int width, int height, OutputStream out, int compressionLevel,
+            int dotsPerInch, boolean indexed, RenderMonitor monitor) throws IOException {
+        long renderNanos = 0, encodeNanos = 0, start;
+        PatternPalette palette = indexed ? PatternPalette.forScheme(drawingScheme) : null;
+        PngEncoder encoder = new PngEncoder(out, width, height, compressionLevel, getPool(),
+            (palette == null) ? null : palette.getColorModel());
+        if (dotsPerInch > 0)
+            encoder.setResolution(dotsPerInch);
+        int bandHeight = Math.min(height, RenderParameters.BAND_HEIGHT);
+        BufferedImage band = (palette == null) ? new BufferedImage(width, bandHeight, BufferedImage.TYPE_INT_RGB)
+            : palette.createImage(width, bandHeight);
+        int bands = (height + bandHeight - 1) / bandHeight;
+        for (int bandY = 0; bandY < height; bandY += band.getHeight()) {
+            start = System.nanoTime();
+            if (renderTiles(drawingScheme, width, height, band, bandY, monitor) == null)
+                return(false);
+            renderNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            encoder.writeRows(band, Math.min(band.getHeight(), height - bandY));
+            encodeNanos += System.nanoTime() - start;
+            progressed(monitor, bandY / bandHeight + 1, bands);
+        }
+        start = System.nanoTime();
+        encoder.finish();
+        encodeNanos += System.nanoTime() - start;
+        if (statistics != null)
+            statistics.imageExported(renderNanos, encodeNanos, encoder.getRawBytes());
+        return(true);
+    }
+
+    /* Write the pattern at the given size as an SVG image. */
+    public void writeSvg(SchemeSnapshot drawingScheme, int width, int height, OutputStream out) throws IOException {
+        writeVector(drawingScheme, width, height, new VectorWriter.Svg(out));
+    }
+
+    /* Write the pattern at the given size as a PDF document. */
+    public void writePdf(SchemeSnapshot drawingScheme, int width, int height, OutputStream out) throws IOException {
+        writeVector(drawingScheme, width, height, new VectorWriter.Pdf(out));
+    }
+
+    /* Write the pattern at the given size as a vector image. The shapes are grouped by color
+    as for rendering, so each color is written once. The levels at the center that are
+    smaller than a pixel are left out, and the innermost level left is filled like the
+    innermost polygon. */
+    public void writeVector(SchemeSnapshot drawingScheme, int width, int height, VectorWriter writer) throws IOException {
+        writeVector(drawingScheme, width, height, writer, null);
+    }
+
+    /* Like writeVector above. Returns false if the monitor (if any) cancelled the image
+    before it was completed, in which case it is left incomplete. If the monitor is a
+    RenderProgress, it is told as the shapes of each color are written. */
+    public boolean writeVector(SchemeSnapshot drawingScheme, int width, int height, VectorWriter writer,
+            RenderMonitor monitor) throws IOException {
+        generateLevels(drawingScheme, width, height, RenderParameters.VECTOR_MIN_LEVEL_SIZE);
+        if (isCancelled(monitor))
+            return(false);
+        writer.begin(width, height, drawingScheme.backgroundColor);
+        Map<Color, List<Path2D.Double>> fills = collectFills(drawingScheme, chain, 0, chain.levels(), null, null).shapes();
+        Map<Color, List<Path2D.Double>> lines = collectLines(drawingScheme, chain, 0, chain.levels(), null).shapes();
+        // One step for collecting the shapes, and one for each color.
+        int steps = 1 + fills.size() + lines.size(), done = 1;
+        progressed(monitor, done, steps);
+        for (Map.Entry<Color, List<Path2D.Double>> entry : fills.entrySet()) {
+            if (isCancelled(monitor))
+                return(false);
+            writer.fill(entry.getKey(), entry.getValue());
+            progressed(monitor, ++done, steps);
+        }
+        for (Map.Entry<Color, List<Path2D.Double>> entry : lines.entrySet()) {
+            if (isCancelled(monitor))
+                return(false);
+            writer.stroke(entry.getKey(), entry.getValue(), drawingScheme.lineWidth);
+            progressed(monitor, ++done, steps);
+        }
+        writer.finish();
+        return(true);
+    }
+
+    /* Render the pattern at the given size with the given graphics. */
+    public void render(SchemeSnapshot drawingScheme, int width, int height, Graphics2D g2) {
+        render(drawingScheme, width, height, g2, null);
+    }
+
+    /* Draw the whole pattern at the given size, on the calling thread. Returns false if the
+    monitor (if any) cancelled the render before it was completed. */
+    public boolean render(SchemeSnapshot drawingScheme, int width, int height, Graphics2D g2, RenderMonitor monitor) {
+        generateLevels(drawingScheme, width, height);
+        if (isCancelled(monitor))
+            return(false);
+        FrameCounts counts = drawLevels(g2, drawingScheme, chain, width, height, 0, chain.levels(), null, monitor);
+        if (counts == null)
+            return(false);
+        if (statistics != null)
+            statistics.frameRendered(counts.stateChanges, counts.fillCalls, counts.overdraw);
+        return(true);
+    }
+
+    /* Map the regions of the pattern at the given size, for recoloring it later without
+    rendering it again (see RegionMap). Returns null if the pattern has too many regions
+    to map, or if the monitor (if any) cancelled the render. */
+    public RegionMap renderRegions(SchemeSnapshot drawingScheme, int width, int height, RenderMonitor monitor) {
+        generateLevels(drawingScheme, width, height);
+        int numSides = drawingScheme.numSides;
+        int levels = chain.levels();
+        if (RegionMap.FIRST_LINE + (long)levels * numSides > RegionMap.MAX_REGIONS)
+            return(null);
+        // Like the outlines of a full render, the sides are stacked in the order of their
+        // colors in the line palette (or of their levels, if outlines are not drawn).
+        DrawingScheme.ColorTable lineColors = drawingScheme.getLineColorTable();
+        int[] order = new int[levels * numSides];
+        int numOrders = 1;
+        int entry;
+        for (int l = 0; (l < levels) && !lineColors.isEmpty(); l++) {
+            entry = lineColors.start(chain.getFirstLevel() + ((l < levels - 1) ? l : l + 1));
+            for (int s = 0; s < numSides; s++) {
+                order[l * numSides + s] = lineColors.paletteIndex[entry];
+                numOrders = Math.max(numOrders, order[l * numSides + s] + 1);
+                if (++entry == lineColors.period())
+                    entry = 0;
+            }
+        }
+        // Regions are drawn as colors, without antialiasing, so that every sample gets the
+        // number of exactly one region. Each pixel is sampled SUBPIXELS times in both
+        // directions, a band of rows at a time to bound the memory used.
+        int subpixels = RegionMap.SUBPIXELS;
+        int bandRows = Math.max(1, Math.min(height, RegionMap.BAND_SAMPLES / (width * subpixels * subpixels)));
+        BufferedImage fillImage = new BufferedImage(width * subpixels, bandRows * subpixels, BufferedImage.TYPE_INT_RGB);
+        BufferedImage lineImage = new BufferedImage(width * subpixels, bandRows * subpixels, BufferedImage.TYPE_INT_RGB);
+        int[] fillSamples = ((DataBufferInt)fillImage.getRaster().getDataBuffer()).getData();
+        int[] lineSamples = ((DataBufferInt)lineImage.getRaster().getDataBuffer()).getData();
+        RegionMap regions = new RegionMap(width, height, numSides, chain.getFirstLevel(), levels,
+            drawingScheme.getGeometryVersion(), drawingScheme.lineColorScheme, drawingScheme.lineColors.size());
+        Graphics2D g2;
+        boolean completed;
+        int bottom;
+        for (int top = 0; top < height; top += bandRows) {
+            bottom = Math.min(top + bandRows, height);
+            g2 = createRegionGraphics(fillImage, top);
+            g2.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            completed = drawFillRegions(g2, drawingScheme, top, bottom, monitor);
+            g2.dispose();
+            if (!completed)
+                return(null);
+            // Outlines are drawn on their own image, so that a side without color shows the
+            // fill below it. Sides are not drawn at all if outlines have no colors.
+            g2 = createRegionGraphics(lineImage, top);
+            completed = lineColors.isEmpty() || drawLineRegions(g2, drawingScheme, order, numOrders, top, bottom, monitor);
+            g2.dispose();
+            if (!completed)
+                return(null);
+            regions.addBand(top, bottom - top, fillSamples, lineSamples);
+        }
+        return(regions);
+    }
+
+    /* Check whether the polygon of a level reaches into the rows from top up to bottom. */
+    private boolean levelReachesRows(int level, int top, int bottom) {
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < chain.sides(); v++) {
+            minY = Math.min(minY, chain.getY(level, v));
+            maxY = Math.max(maxY, chain.getY(level, v));
+        }
+        return((maxY + 1 >= top) && (minY - 1 <= bottom));
+    }
+
+    /* Clear an image for drawing the regions of a band of rows, starting at the given top
+    row of the pattern, at the resolution of the samples. */
+    private static Graphics2D createRegionGraphics(BufferedImage image, int top) {
+        Graphics2D g2 = image.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        // BACKGROUND and NO_LINE are both 0.
+        g2.setColor(new Color(RegionMap.BACKGROUND));
+        g2.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g2.scale(RegionMap.SUBPIXELS, RegionMap.SUBPIXELS);
+        g2.translate(0, -top);
+        return(g2);
+    }
+
+    /* Draw the space between the polygons that reaches into the rows from top up to bottom,
+    colored with the numbers of its regions. Returns false if the monitor cancelled the render. */
+    private boolean drawFillRegions(Graphics2D g2, SchemeSnapshot drawingScheme, int top, int bottom, RenderMonitor monitor) {
+        int numSides = drawingScheme.numSides;
+        int levels = chain.levels();
+        Path2D.Double path = new Path2D.Double();
+        int outerIndex, nextIndex;
+        for (int level = 0; level < levels - 1; level++) {
+            if (isCancelled(monitor))
+                return(false);
+            // Every polygon lies inside the one before it.
+            if (!levelReachesRows(level, top, bottom))
+                continue;
+            // The same triangles as addSpaceBetweenPolygons, one region each.
+            for (int s = 0; s < numSides; s++) {
+                nextIndex = (s + 1) % numSides;
+                outerIndex = (drawingScheme.direction == DrawingScheme.Direction.CLOCKWISE) ? nextIndex : s;
+                path.reset();
+                path.moveTo(chain.getX(level + 1, s), chain.getY(level + 1, s));
+                path.lineTo(chain.getX(level, outerIndex), chain.getY(level, outerIndex));
+                path.lineTo(chain.getX(level + 1, nextIndex), chain.getY(level + 1, nextIndex));
+                path.closePath();
+                g2.setColor(new Color(RegionMap.FIRST_FILL + level * numSides + s));
+                g2.fill(path);
+            }
+        }
+        path.reset();
+        for (int s = 0; s < numSides; s++) {
+            if (s == 0)
+                path.moveTo(chain.getX(levels - 1, s), chain.getY(levels - 1, s));
+            else
+                path.lineTo(chain.getX(levels - 1, s), chain.getY(levels - 1, s));
+        }
+        path.closePath();
+        g2.setColor(new Color(RegionMap.INNER_FILL));
+        g2.fill(path);
+        return(true);
+    }
+
+    /* Draw the sides of the outlines that reach into the rows from top up to bottom, colored
+    with their numbers, stacked in the given order. Returns false if the monitor cancelled
+    the render. */
+    private boolean drawLineRegions(Graphics2D g2, SchemeSnapshot drawingScheme, int[] order, int numOrders,
+            int top, int bottom, RenderMonitor monitor) {
+        int numSides = drawingScheme.numSides;
+        g2.setStroke(new BasicStroke((float)drawingScheme.lineWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        Path2D.Double path = new Path2D.Double();
+        // The antialiased outlines of a full render, whose ends are on whole pixels, are
+        // drawn this far down and right of them.
+        double offset = 0.25;
+        double margin = drawingScheme.lineWidth / 2 + 1;
+        double y1, y2;
+        int level, side, nextIndex;
+        for (int o = 0; o < numOrders; o++) {
+            if (isCancelled(monitor))
+                return(false);
+            for (int i = 0; i < order.length; i++) {
+                if (order[i] != o)
+                    continue;
+                level = i / numSides;
+                side = i % numSides;
+                nextIndex = (side + 1) % numSides;
+                y1 = chain.getY(level, side);
+                y2 = chain.getY(level, nextIndex);
+                if ((Math.max(y1, y2) + margin < top) || (Math.min(y1, y2) - margin > bottom))
+                    continue;
+                path.reset();
+                path.moveTo(Math.round(chain.getX(level, side)) + offset, Math.round(chain.getY(level, side)) + offset);
+                path.lineTo(Math.round(chain.getX(level, nextIndex)) + offset, Math.round(chain.getY(level, nextIndex)) + offset);
+                g2.setColor(new Color(RegionMap.FIRST_LINE + i));
+                g2.draw(path);
+            }
+        }
+        return(true);
+    }
+
+    /* Color an image with the colors of the drawing scheme, from a map of its regions
+    rendered earlier at the size of the image. */
+    public void recolor(RegionMap regions, SchemeSnapshot drawingScheme, BufferedImage image) {
+        long start = System.nanoTime();
+        regions.recolor(drawingScheme, image, getPool());
+        if (statistics != null)
+            statistics.imageRecolored(System.nanoTime() - start);
+    }
+
+    /* Fill the chain with the visible levels of the pattern at the given size. */
+    private void generateLevels(SchemeSnapshot drawingScheme, int width, int height) {
+        generateLevels(drawingScheme, width, height, minLevelSize / outputScale);
+    }
+
+    /* Fill the chain with the levels of the pattern at the given size, down to the first one
+    whose width and height are both below minLevelSize, which becomes the innermost level.
+    Deeper levels would be too small to make a difference. Every level lies inside the one
+    before it, so a scheme whose levels do not (e.g., with a displacement outside the limits,
+    or vertices that are not numbers) ends at the last level that does, and no scheme can
+    have more levels than fit in RenderParameters.MAX_VERTICES. */
+    private void generateLevels(SchemeSnapshot drawingScheme, int width, int height, double minLevelSize) {
+        if ((drawingScheme.getGeometryVersion() == levelsVersion) && (width == levelsWidth) && (height == levelsHeight)
+                && (minLevelSize == levelsMinSize) && (outputScale == levelsScale)
+                && (firstLevel == levelsFirst) && (lastLevel == levelsLast))
+            return;
+        if (firstLevel >= 0)
+            checkLevelRange(drawingScheme, firstLevel);
+        levelsVersion = drawingScheme.getGeometryVersion();
+        levelsWidth = width;
+        levelsHeight = height;
+        levelsMinSize = minLevelSize;
+        levelsScale = outputScale;
+        levelsFirst = firstLevel;
+        levelsLast = lastLevel;
+        // Take the drawing scheme's base polygon (in arbitrary units), and scale it to fit
+        // the dimensions of the canvas. It becomes the first level of the chain.
+        drawingScheme.scaleBasePolygon(new Dimension(width, height), RenderParameters.CANVAS_MARGIN, chain);
+        int maxLevels = RenderParameters.MAX_VERTICES / chain.sides();
+        if (firstLevel >= 0) {
+            // The levels of the range are found from the base polygon, in place of all the levels.
+            int last = (int)Math.min(lastLevel, (long)firstLevel + maxLevels - 1);
+            if (!drawingScheme.infinite)
+                last = Math.min(last, drawingScheme.iterations);
+            new Geometry.RelativeNesting(chain, drawingScheme).fillLevels(chain, firstLevel, last,
+                new Dimension(width, height), RenderParameters.CANVAS_MARGIN, minLevelSize);
+            return;
+        }
+        // Generate all the inner polygons of the pattern. Stop when the center has been
+        // reached (findNextPolygon fails), when reached the requested depth, or when the
+        // levels became too small.
+        int level;
+        double levelWidth = chain.getMaxX(0) - chain.getMinX(0), levelHeight = chain.getMaxY(0) - chain.getMinY(0);
+        double lastWidth, lastHeight;
+        while ((drawingScheme.infinite || (chain.levels() <= drawingScheme.iterations)) && (chain.levels() < maxLevels)) {
+            if (!Geometry.findNextPolygon(chain, drawingScheme, RenderParameters.MIN_DISPLACEMENT))
+                break;
+            level = chain.levels() - 1;
+            lastWidth = levelWidth;
+            lastHeight = levelHeight;
+            levelWidth = chain.getMaxX(level) - chain.getMinX(level);
+            levelHeight = chain.getMaxY(level) - chain.getMinY(level);
+            // Written so that NaN sizes fail the test too.
+            if (!(levelWidth <= lastWidth + RenderParameters.MIN_DISPLACEMENT)
+                    || !(levelHeight <= lastHeight + RenderParameters.MIN_DISPLACEMENT)) {
+                chain.removeLastLevel();
+                break;
+            }
+            if ((levelWidth < minLevelSize) && (levelHeight < minLevelSize))
+                break;
+        }
+    }
+
+    private ForkJoinPool getPool() {
+        if (pool != null)
+            return(pool);
+        synchronized (PatternRenderer.class) {
+            if (sharedPool == null)
+                sharedPool = new ForkJoinPool();
+            return(sharedPool);
+        }
+    }
+
+    /* Work done for drawing (part of) a frame, as recorded in RenderStatistics. */
+    private static class FrameCounts {
+        // Changes of color and stroke, and fill calls.
+        int stateChanges, fillCalls;
+        // Pixels stroked more than once by the outlines, counted only if
+        // RenderStatistics.COUNT_OVERDRAW is set (see OverdrawCounter).
+        long overdraw;
+
+        void add(FrameCounts other) {
+            stateChanges += other.stateChanges;
+            fillCalls += other.fillCalls;
+            overdraw += other.overdraw;
+        }
+    }
+
+    /* Counts the pixels that outline strokes cover more than once, where the antialiased
+    edges of separate strokes add up (a single stroke covers each pixel once, however often
+    the path crosses it). Each stroke is rasterized into a mask, without antialiasing, and the
+    strokes covering each pixel of the canvas (the part of it that the graphics draw on) are
+    counted. This costs far more than the drawing itself, so it is only done for debugging. */
+    private static class OverdrawCounter {
+        private final BufferedImage mask;
+        private final Graphics2D maskGraphics;
+        private final Rectangle maskBounds;
+        private final int[] strokes;
+
+        OverdrawCounter(Graphics2D g2, int width, int height) {
+            Rectangle bounds = g2.getTransform().createTransformedShape(new Rectangle(0, 0, width, height)).getBounds()
+                .intersection(g2.getDeviceConfiguration().getBounds());
+            int maskWidth = Math.max(bounds.width, 1), maskHeight = Math.max(bounds.height, 1);
+            mask = new BufferedImage(maskWidth, maskHeight, BufferedImage.TYPE_BYTE_GRAY);
+            maskBounds = new Rectangle(0, 0, maskWidth, maskHeight);
+            maskGraphics = mask.createGraphics();
+            maskGraphics.translate(-bounds.x, -bounds.y);
+            maskGraphics.transform(g2.getTransform());
+            maskGraphics.setColor(Color.WHITE);
+            strokes = new int[maskWidth * maskHeight];
+        }
+
+        void stroked(Shape stroke) {
+            Rectangle area = maskGraphics.getTransform().createTransformedShape(stroke.getBounds2D()).getBounds();
+            area.grow(1, 1);
+            area = area.intersection(maskBounds);
+            if (area.isEmpty())
+                return;
+            maskGraphics.fill(stroke);
+            byte[] pixels = ((DataBufferByte)mask.getRaster().getDataBuffer()).getData();
+            int width = mask.getWidth(), p;
+            for (int y = area.y; y < area.y + area.height; y++) {
+                for (int x = area.x; x < area.x + area.width; x++) {
+                    p = y * width + x;
+                    if (pixels[p] != 0) {
+                        strokes[p]++;
+                        pixels[p] = 0;
+                    }
+                }
+            }
+        }
+
+        /* Number of times pixels were stroked after the first time. */
+        long overdraw() {
+            long overdraw = 0;
+            for (int count : strokes)
+                if (count > 1)
+                    overdraw += count - 1;
+            return(overdraw);
+        }
+    }
+
+    /* Renders a range of tiles, splitting it in halves until single tiles are left. Each tile
+    is rasterized into an image of its own, with only the levels of the pattern that can
+    reach it, and then copied into the final image (a band of the canvas, starting at row
+    bandY). The result is null if the render was cancelled. */
+    private class TileTask extends RecursiveTask<FrameCounts> {
+        private static final long serialVersionUID = 1L;
+        final SchemeSnapshot drawingScheme;
+        final int canvasWidth, canvasHeight;
+        final BufferedImage image;
+        final PatternPalette palette;
+        final int bandY, tilesAcross, from, to;
+        final RenderMonitor monitor;
+
+        TileTask(SchemeSnapshot drawingScheme, int canvasWidth, int canvasHeight, BufferedImage image, PatternPalette palette,
+                int bandY, int tilesAcross, int from, int to, RenderMonitor monitor) {
+            this.drawingScheme = drawingScheme;
+            this.canvasWidth = canvasWidth;
+            this.canvasHeight = canvasHeight;
+            this.image = image;
+            this.palette = palette;
+            this.bandY = bandY;
+            this.tilesAcross = tilesAcross;
+            this.from = from;
+            this.to = to;
+            this.monitor = monitor;
+        }
+
+        @Override protected FrameCounts compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                TileTask first = new TileTask(drawingScheme, canvasWidth, canvasHeight, image, palette, bandY,
+                    tilesAcross, from, middle, monitor);
+                TileTask second = new TileTask(drawingScheme, canvasWidth, canvasHeight, image, palette, bandY,
+                    tilesAcross, middle, to, monitor);
+                invokeAll(first, second);
+                FrameCounts counts = first.join();
+                FrameCounts secondCounts = second.join();
+                if ((counts == null) || (secondCounts == null))
+                    return(null);
+                counts.add(secondCounts);
+                return(counts);
+            }
+            if (PatternRenderer.isCancelled(monitor))
+                return(null);
+            int tileSize = RenderParameters.TILE_SIZE;
+            int x = (from % tilesAcross) * tileSize;
+            int y = bandY + (from / tilesAcross) * tileSize;
+            int width = Math.min(tileSize, canvasWidth - x);
+            int height = Math.min(tileSize, Math.min(canvasHeight, bandY + image.getHeight()) - y);
+            BufferedImage tile;
+            if (palette != null) {
+                tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            } else {
+                ColorModel colorModel = image.getColorModel();
+                tile = new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height),
+                    colorModel.isAlphaPremultiplied(), null);
+            }
+            Graphics2D tileGraphics = tile.createGraphics();
+            tileGraphics.translate(-x, -y);
+            // Levels that lie outside the tile cannot reach it, and neither can the deeper ones.
+            // When the tile lies inside a level, it is covered by that level and the deeper ones,
+            // so the levels above it need not be drawn. Both tests are made on the tile enlarged
+            // by the width of the outlines and a margin for antialiasing; the exact ones hold
+            // for convex patterns only, other patterns are culled by their bounding boxes.
+            double margin = drawingScheme.lineWidth / 2 + 2;
+            double left = x - margin, top = y - margin, size = width + 2 * margin, depth = height + 2 * margin;
+            boolean convex = chain.isConvex(0);
+            int lastLevel = chain.levels() - 1;
+            int low = 0, high = lastLevel + 1, middle;
+            while (low < high) {
+                middle = (low + high) >>> 1;
+                if (convex ? !chain.isOutside(middle, left, top, size, depth)
+                    : ((chain.getMinX(middle) <= left + size) && (chain.getMaxX(middle) >= left)
+                    && (chain.getMinY(middle) <= top + depth) && (chain.getMaxY(middle) >= top)))
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            int endLevel = low;
+            int firstLevel = 0;
+            if ((endLevel > 0) && convex) {
+                low = 0;
+                high = endLevel - 1;
+                while (low < high) {
+                    middle = (low + high + 1) >>> 1;
+                    if (chain.containsRectangle(middle, left, top, size, depth))
+                        low = middle;
+                    else
+                        high = middle - 1;
+                }
+                firstLevel = low;
+            }
+            FrameCounts counts = drawLevels(tileGraphics, drawingScheme, chain, canvasWidth, canvasHeight,
+                firstLevel, endLevel, new Rectangle2D.Double(left, top, size, depth), monitor);
+            tileGraphics.dispose();
+            if ((counts != null) && (palette != null)) {
+                int[] pixels = new int[width];
+                byte[] indices = new byte[width];
+                Map<Integer, Byte> cache = PatternPalette.newCache();
+                for (int row = 0; row < height; row++) {
+                    tile.getRaster().getDataElements(0, row, width, 1, pixels);
+                    palette.toIndices(pixels, indices, width, cache);
+                    image.getRaster().setDataElements(x, y - bandY + row, width, 1, indices);
+                }
+            } else if (counts != null) {
+                image.getRaster().setDataElements(x, y - bandY, tile.getRaster());
+            }
+            return(counts);
+        }
+    }
+
+    /* Draw the background and the levels of the pattern from firstLevel up to (not including)
+    endLevel: the space between each level and the next, the inner fill if the last level is
+    included, and the outlines. If an area is given, only the parts of the levels that can
+    reach it are drawn. Returns the work done, or null if the monitor (if any)
+    cancelled the render before it was completed. */
+    private static FrameCounts drawLevels(Graphics2D g2, SchemeSnapshot drawingScheme, NestedPolygonChain chain,
+            int width, int height, int firstLevel, int endLevel, Rectangle2D area, RenderMonitor monitor) {
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+            RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING,
+            RenderingHints.VALUE_RENDER_SPEED);
+        // Fill the whole canvas with the background color.
+        g2.setColor(drawingScheme.backgroundColor);
+        g2.fillRect(0, 0, width, height);
+        // The pattern is drawn in a single pass: first all the fills, then the outline of
+        // every level, each exactly once, on top of the fills. Both are collected in color
+        // batches, so every color is filled or stroked with as few calls as possible.
+        ColorBatch fills = collectFills(drawingScheme, chain, firstLevel, endLevel, area, monitor);
+        if (fills == null)
+            return(null);
+        FrameCounts counts = new FrameCounts();
+        // Count the changes of color and stroke.
+        counts.stateChanges = fills.fill(g2);
+        counts.fillCalls = fills.calls();
+        ColorBatch lines = collectLines(drawingScheme, chain, firstLevel, endLevel, area);
+        Stroke stroke = new BasicStroke((float)drawingScheme.lineWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        OverdrawCounter overdrawCounter = RenderStatistics.COUNT_OVERDRAW ? new OverdrawCounter(g2, width, height) : null;
+        counts.stateChanges += lines.draw(g2, stroke, overdrawCounter);
+        if (overdrawCounter != null)
+            counts.overdraw = overdrawCounter.overdraw();
+        return(counts);
+    }
+
+    /* Collect the fills of the levels from firstLevel up to (not including) endLevel: the
+    space between each level and the next, and the inner fill if the last level is included.
+    If an area is given, only the parts that can reach it are collected. Returns null if the
+    monitor (if any) cancelled the render. */
+    static ColorBatch collectFills(SchemeSnapshot drawingScheme, NestedPolygonChain chain,
+            int firstLevel, int endLevel, Rectangle2D area, RenderMonitor monitor) {
+        int lastLevel = chain.levels() - 1;
+        // "iteration" represents the number of polygons drawn so far, and is used
+        // for selecting the right colors.
+        DrawingScheme.ColorTable colors = drawingScheme.getFillColorTable();
+        ColorBatch fills = new ColorBatch();
+        fills.addColors(colors);
+        for (int iteration = firstLevel + 1; iteration <= Math.min(endLevel, lastLevel); iteration++) {
+            if (isCancelled(monitor))
+                return(null);
+            addSpaceBetweenPolygons(fills, chain, iteration - 1, drawingScheme, colors,
+                chain.getFirstLevel() + iteration - 1, area);
+        }
+        // Fill the last polygon.
+        if (endLevel > lastLevel) {
+            if (drawingScheme.innerFill) {
+                fills.addPolygon(drawingScheme.innerFillColor, chain, lastLevel);
+            } else {
+                fills.addPolygon(drawingScheme.backgroundColor, chain, lastLevel);
+            }
+        }
+        return(fills);
+    }
+
+    /* Collect the outlines of the levels from firstLevel up to (not including) endLevel. If an
+    area is given, only the sides that can reach it are collected. */
+    static ColorBatch collectLines(SchemeSnapshot drawingScheme, NestedPolygonChain chain,
+            int firstLevel, int endLevel, Rectangle2D area) {
+        int lastLevel = chain.levels() - 1;
+        DrawingScheme.ColorTable colors = drawingScheme.getLineColorTable();
+        ColorBatch lines = new ColorBatch();
+        lines.addColors(colors);
+        if (colors.isEmpty())
+            return(lines);
+        for (int level = firstLevel; level < endLevel; level++) {
+            // The innermost polygon has always been drawn with the colors of the next
+            // iteration, on top of its inner fill.
+            addPolygonOutline(lines, chain, level, colors,
+                chain.getFirstLevel() + ((level < lastLevel) ? level : level + 1), area);
+        }
+        return(lines);
+    }
+
+    private static boolean isCancelled(RenderMonitor monitor) {
+        return((monitor != null) && monitor.isCancelled());
+    }
+
+    private static void progressed(RenderMonitor monitor, int done, int total) {
+        if (monitor instanceof RenderProgress)
+            ((RenderProgress)monitor).progressed(done, total);
+    }
+
+    /* Shapes of the pattern grouped by color, so that all the shapes of one color (across
+    all levels) are filled or stroked together instead of one at a time. All coordinates
+    are kept in double precision. Shapes of the same color that touch merge seamlessly,
+    since they are filled as one area (with the non-zero winding rule).
+    A line that starts where the previous line of the same color ended continues the same
+    polyline; with round joins this looks exactly like separate lines with round caps, but
+    is much faster to stroke. */
+    static class ColorBatch {
+        // Very large paths are slow to rasterize (every scanline crosses every level), so
+        // each color is drawn in chunks of up to this many segments.
+        private static final int MAX_SEGMENTS_PER_DRAW = 2048;
+
+        private static class ColorPath {
+            final Color color;
+            // The chunk still being extended, and the chunks that are complete.
+            Path2D.Double path = new Path2D.Double();
+            int segments;
+            final List<Path2D.Double> completePaths = new ArrayList<Path2D.Double>();
+            // End of the current polyline, if lines are still being added to it.
+            boolean open;
+            double endX, endY;
+
+            ColorPath(Color color) {
+                this.color = color;
+            }
+        }
+
+        // The paths of each color, in the order in which the colors are drawn.
+        private final Map<Color, ColorPath> paths = new LinkedHashMap<Color, ColorPath>();
+        // The paths of the colors of the palette added, by position in the palette, so that
+        // the shapes of a side can go to their path without looking up its color.
+        private ColorPath[] palettePaths = new ColorPath[0];
+
+        /* Fix the order in which the colors are drawn (colors that are not added here come
+        last), by the palette of a color table. Where shapes of different colors overlap, the
+        order decides which is on top, so it must not depend on which shape happens to be
+        added first. */
+        void addColors(DrawingScheme.ColorTable colors) {
+            palettePaths = new ColorPath[colors.palette.length];
+            for (int c = 0; c < palettePaths.length; c++)
+                palettePaths[c] = getPath(colors.palette[c]);
+        }
+
+        private ColorPath getPath(Color color) {
+            ColorPath colorPath = paths.get(color);
+            if (colorPath == null) {
+                colorPath = new ColorPath(color);
+                paths.put(color, colorPath);
+            }
+            return(colorPath);
+        }
+
+        private void segmentsAdded(ColorPath colorPath, int numSegments) {
+            colorPath.segments += numSegments;
+            if (colorPath.segments >= MAX_SEGMENTS_PER_DRAW) {
+                colorPath.completePaths.add(colorPath.path);
+                colorPath.path = new Path2D.Double();
+                colorPath.segments = 0;
+                colorPath.open = false;
+            }
+        }
+
+        /* Add a line in the color at the given position of the palette added. */
+        void addLine(int paletteIndex, double x1, double y1, double x2, double y2) {
+            ColorPath colorPath = palettePaths[paletteIndex];
+            if (!colorPath.open || (colorPath.endX != x1) || (colorPath.endY != y1))
+                colorPath.path.moveTo(x1, y1);
+            colorPath.path.lineTo(x2, y2);
+            colorPath.open = true;
+            colorPath.endX = x2;
+            colorPath.endY = y2;
+            segmentsAdded(colorPath, 1);
+        }
+
+        void addTriangle(int paletteIndex, double x1, double y1, double x2, double y2, double x3, double y3) {
+            ColorPath colorPath = palettePaths[paletteIndex];
+            colorPath.path.moveTo(x1, y1);
+            colorPath.path.lineTo(x2, y2);
+            colorPath.path.lineTo(x3, y3);
+            colorPath.path.closePath();
+            colorPath.open = false;
+            segmentsAdded(colorPath, 3);
+        }
+
+        /* Add one level of the chain as a closed polygon. */
+        void addPolygon(Color color, NestedPolygonChain chain, int level) {
+            ColorPath colorPath = getPath(color);
+            appendPolygon(colorPath.path, chain, level, false);
+            colorPath.open = false;
+            segmentsAdded(colorPath, chain.sides());
+        }
+
+        /* Add the ring between one level of the chain and the level below it, as the outer
+        polygon with the inner polygon (traced in the opposite direction) cut out of it. */
+        void addRing(int paletteIndex, NestedPolygonChain chain, int outerLevel) {
+            ColorPath colorPath = palettePaths[paletteIndex];
+            appendPolygon(colorPath.path, chain, outerLevel, false);
+            appendPolygon(colorPath.path, chain, outerLevel + 1, true);
+            colorPath.open = false;
+            segmentsAdded(colorPath, 2 * chain.sides());
+        }
+
+        private static void appendPolygon(Path2D.Double path, NestedPolygonChain chain, int level, boolean reversed) {
+            int numSides = chain.sides();
+            int v;
+            for (int i = 0; i < numSides; i++) {
+                v = reversed ? (numSides - i) % numSides : i;
+                if (i == 0)
+                    path.moveTo(chain.getX(level, v), chain.getY(level, v));
+                else
+                    path.lineTo(chain.getX(level, v), chain.getY(level, v));
+            }
+            path.closePath();
+        }
+
+        /* The collected shapes of every color that has any, in the order in which the colors
+        are drawn. */
+        Map<Color, List<Path2D.Double>> shapes() {
+            Map<Color, List<Path2D.Double>> shapes = new LinkedHashMap<Color, List<Path2D.Double>>();
+            for (ColorPath colorPath : paths.values()) {
+                if (colorPath.segments > 0) {
+                    colorPath.completePaths.add(colorPath.path);
+                    colorPath.path = new Path2D.Double();
+                    colorPath.segments = 0;
+                    colorPath.open = false;
+                }
+                if (!colorPath.completePaths.isEmpty())
+                    shapes.put(colorPath.color, colorPath.completePaths);
+            }
+            return(shapes);
+        }
+
+        /* Number of draw or fill calls needed for the collected shapes. */
+        int calls() {
+            int calls = 0;
+            for (ColorPath colorPath : paths.values())
+                calls += colorPath.completePaths.size() + ((colorPath.segments > 0) ? 1 : 0);
+            return(calls);
+        }
+
+        /* Fill all the collected shapes. Returns the number of changes made to the color. */
+        int fill(Graphics2D g2) {
+            int stateChanges = 0;
+            for (Map.Entry<Color, List<Path2D.Double>> entry : shapes().entrySet()) {
+                g2.setColor(entry.getKey());
+                stateChanges++;
+                for (Path2D.Double path : entry.getValue())
+                    g2.fill(path);
+            }
+            return(stateChanges);
+        }
+
+        /* Stroke all the collected lines, telling the overdraw counter (if any) about every
+        stroke. Returns the number of changes made to the color and stroke. */
+        int draw(Graphics2D g2, Stroke stroke, OverdrawCounter overdrawCounter) {
+            if (calls() == 0)
+                return(0);
+            g2.setStroke(stroke);
+            int stateChanges = 1;
+            for (Map.Entry<Color, List<Path2D.Double>> entry : shapes().entrySet()) {
+                g2.setColor(entry.getKey());
+                stateChanges++;
+                for (Path2D.Double path : entry.getValue()) {
+                    g2.draw(path);
+                    if (overdrawCounter != null)
+                        overdrawCounter.stroked(stroke.createStrokedShape(path));
+                }
+            }
+            return(stateChanges);
+        }
+    }
+
+    /* Add the outline of one polygon (level of the chain) to the batch of lines,
+    with the colors of the table (which must not be empty). If an area is given, only the
+    sides that can reach it are added. */
+    private static void addPolygonOutline(ColorBatch lines, NestedPolygonChain chain, int level,
+        DrawingScheme.ColorTable colors, int iteration, Rectangle2D area) {
+        int numSides = chain.sides();
+        int period = colors.period();
+        int entry = colors.start(iteration);
+        int nextIndex;
+        long x1, y1, x2, y2;
+        for (int s = 0; s < numSides; s++) {
+            nextIndex = (s + 1 == numSides) ? 0 : s + 1;
+            x1 = Math.round(chain.getX(level, s));
+            y1 = Math.round(chain.getY(level, s));
+            x2 = Math.round(chain.getX(level, nextIndex));
+            y2 = Math.round(chain.getY(level, nextIndex));
+            // Each side is a separate line, because each side might have a different color.
+            if ((area == null) || reaches(area, Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2)))
+                lines.addLine(colors.paletteIndex[entry], x1, y1, x2, y2);
+            if (++entry == period)
+                entry = 0;
+        } // sides
+    }
+
+    /* Add the space between two adjacent polygons (the given level of the chain and the level
+    below it) to the batch of fills. When the whole ring has a single color, it is added as one
+    ring-shaped area. Otherwise, each side contributes the triangle between two adjacent vertices
+    of the inner polygon and the vertex of the outer polygon between them. The triangles tile
+    the ring exactly, with neither gaps nor overlaps.
+    If an area is given, only the triangles that can reach it are added, also for single
+    colored rings: a ring that crosses a small area is mostly outside it. */
+    private static void addSpaceBetweenPolygons(ColorBatch fills, NestedPolygonChain chain, int outerLevel,
+        SchemeSnapshot drawingScheme, DrawingScheme.ColorTable colors, int iteration, Rectangle2D area) {
+        int numSides = chain.sides();
+        int innerLevel = outerLevel + 1;
+        int period = colors.period();
+        int entry = colors.start(iteration);
+        if (colors.levelColors && (area == null)) {
+            fills.addRing(colors.paletteIndex[entry], chain, outerLevel);
+            return;
+        }
+        boolean clockwise = (drawingScheme.direction == DrawingScheme.Direction.CLOCKWISE);
+        int outerIndex, nextIndex;
+        double x1, y1, x2, y2, x3, y3;
+        for (int s = 0; s < numSides; s++) {
+            nextIndex = (s + 1 == numSides) ? 0 : s + 1;
+            outerIndex = clockwise ? nextIndex : s;
+            x1 = chain.getX(innerLevel, s);
+            y1 = chain.getY(innerLevel, s);
+            x2 = chain.getX(outerLevel, outerIndex);
+            y2 = chain.getY(outerLevel, outerIndex);
+            x3 = chain.getX(innerLevel, nextIndex);
+            y3 = chain.getY(innerLevel, nextIndex);
+            if ((area == null) || reaches(area, Math.min(x1, Math.min(x2, x3)), Math.min(y1, Math.min(y2, y3)),
+                    Math.max(x1, Math.max(x2, x3)), Math.max(y1, Math.max(y2, y3))))
+                fills.addTriangle(colors.paletteIndex[entry], x1, y1, x2, y2, x3, y3);
+            if (++entry == period)
+                entry = 0;
+        }
+    }
+
+    /* Check whether a shape with the given bounds can reach an area. */
+    private static boolean reaches(Rectangle2D area, double minX, double minY, double maxX, double maxY) {
+        return((minX <= area.getMaxX()) && (maxX >= area.getMinX()) && (minY <= area.getMaxY()) && (maxY >= area.getMinY()));
+    }
+} // PatternRenderer
@@ -0,0 +1,403 @@
+package polygo;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/* PngEncoder writes a PNG image a few rows at a time, so that an image can be written
+while it is still being rendered, without ever holding all of it in memory. The image is
+written as 8-bit RGB, every row with the filter that suits it best, or with 8-bit indexed
+colors.
+The rows are compressed in parallel, the way pigz does it: they are cut into strips of a
+fixed size, and every strip is deflated on its own, primed with the 32K of data before it
+as dictionary, and ended with a sync flush so that the strips can simply be concatenated
+into one zlib stream. The checksum of the stream is combined from those of the strips.
+Since the strips do not depend on the number of threads, neither does the file. */
+public class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+    // Maximum size of the data of an IDAT chunk.
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int NUM_FILTERS = 5;
+    // Uncompressed size of the strips compressed in parallel (whole rows, at least one).
+    private static final int STRIP_SIZE = 1 << 18;
+    // Size of the deflate window, the most data a strip can refer back to.
+    private static final int DICTIONARY_SIZE = 1 << 15;
+    // Largest prime smaller than 65536, the modulus of the Adler-32 checksum.
+    private static final int ADLER_BASE = 65521;
+
+    private final DataOutputStream out;
+    private final int width, height;
+    private final int compressionLevel;
+    // Palette of an image with indexed colors, or null for RGB.
+    private final IndexColorModel palette;
+    private final int bytesPerPixel;
+    private final ExecutorService executor;
+    private final int rowBytes, stripRows;
+    private int rowsWritten;
+    private final ChunkOutputStream idat;
+    // Checksum of all the data compressed so far, and its last bytes (the dictionary of the next strip).
+    private long adler = 1;
+    private byte[] dictionary = new byte[0];
+    // Last row written, unfiltered, which the Up, Average and Paeth filters of the next row refer to.
+    private final byte[] lastRow;
+    // Size of the data before and after compression, for reporting the throughput.
+    private long rawBytes, compressedBytes;
+
+    public PngEncoder(OutputStream out, int width, int height) throws IOException {
+        this(out, width, height, Deflater.DEFAULT_COMPRESSION, null, null);
+    }
+
+    /* Start a PNG image of the given size, compressed at the given level (0-9) with the
+    threads of the given executor (on the calling thread only, if null). If a palette is
+    given, the image has indexed colors, and the bands written must be indexed images
+    with the same palette. */
+    public PngEncoder(OutputStream out, int width, int height, int compressionLevel, ExecutorService executor,
+            IndexColorModel palette) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.compressionLevel = compressionLevel;
+        this.executor = executor;
+        this.palette = palette;
+        bytesPerPixel = (palette == null) ? 3 : 1;
+        rowBytes = 1 + width * bytesPerPixel;
+        stripRows = Math.max(1, STRIP_SIZE / rowBytes);
+        lastRow = new byte[rowBytes - 1];
+        this.out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8);    // bits per sample
+        headerData.writeByte((palette == null) ? 2 : 3);    // color type: RGB or indexed
+        headerData.writeByte(0);    // compression: deflate
+        headerData.writeByte(0);    // filter method: adaptive
+        headerData.writeByte(0);    // no interlace
+        writeChunk("IHDR", header.toByteArray(), header.size());
+        if (palette != null) {
+            byte[] colors = new byte[3 * palette.getMapSize()];
+            for (int i = 0; i < palette.getMapSize(); i++) {
+                colors[3 * i] = (byte)palette.getRed(i);
+                colors[3 * i + 1] = (byte)palette.getGreen(i);
+                colors[3 * i + 2] = (byte)palette.getBlue(i);
+            }
+            writeChunk("PLTE", colors, colors.length);
+        }
+        idat = new ChunkOutputStream();
+        // zlib header: deflate with a 32K window, and the compression level as a hint.
+        int levelHint = (compressionLevel < 0) ? 2 : (compressionLevel < 2) ? 0 : (compressionLevel < 6) ? 1
+            : (compressionLevel == 6) ? 2 : 3;
+        int flags = levelHint << 6;
+        flags += 31 - ((0x78 * 256 + flags) % 31);
+        idat.write(new byte[] {0x78, (byte)flags}, 0, 2);
+    }
+
+    /* Record the resolution the image is meant to be printed at, in dots per inch, so that
+    it comes out at the intended physical size. Call before writing any rows. */
+    public void setResolution(int dotsPerInch) throws IOException {
+        if (rowsWritten > 0)
+            throw new IllegalStateException("The resolution must be set before the rows are written");
+        int dotsPerMeter = (int)Math.round(dotsPerInch / 0.0254);
+        ByteArrayOutputStream resolution = new ByteArrayOutputStream();
+        DataOutputStream resolutionData = new DataOutputStream(resolution);
+        resolutionData.writeInt(dotsPerMeter);  // horizontal
+        resolutionData.writeInt(dotsPerMeter);  // vertical
+        resolutionData.writeByte(1);    // unit: meter
+        writeChunk("pHYs", resolution.toByteArray(), resolution.size());
+    }
+
+    /* Append the first numRows rows of the band to the image. */
+    public void writeRows(final BufferedImage band, int numRows) throws IOException {
+        if (rowsWritten + numRows > height)
+            throw new IllegalArgumentException("More rows than the height of the image");
+        final boolean last = (rowsWritten + numRows == height);
+        // Filter the strips, then compress them, in parallel.
+        int numStrips = (numRows + stripRows - 1) / stripRows;
+        List<Callable<byte[]>> filterTasks = new ArrayList<Callable<byte[]>>();
+        for (int s = 0; s < numStrips; s++) {
+            final int firstRow = s * stripRows;
+            final int endRow = Math.min(numRows, firstRow + stripRows);
+            filterTasks.add(new Callable<byte[]>() {
+                public byte[] call() {
+                    return(filterRows(band, firstRow, endRow));
+                }});
+        }
+        final List<byte[]> strips = run(filterTasks);
+        List<Callable<byte[]>> compressTasks = new ArrayList<Callable<byte[]>>();
+        final long[] checksums = new long[numStrips];
+        for (int s = 0; s < numStrips; s++) {
+            final int strip = s;
+            final byte[] stripDictionary = (s == 0) ? dictionary : strips.get(s - 1);
+            compressTasks.add(new Callable<byte[]>() {
+                public byte[] call() {
+                    Adler32 checksum = new Adler32();
+                    checksum.update(strips.get(strip));
+                    checksums[strip] = checksum.getValue();
+                    return(compress(strips.get(strip), stripDictionary, last && (strip == strips.size() - 1)));
+                }});
+        }
+        List<byte[]> compressed = run(compressTasks);
+        for (int s = 0; s < numStrips; s++) {
+            idat.write(compressed.get(s), 0, compressed.get(s).length);
+            adler = combineAdler(adler, checksums[s], strips.get(s).length);
+            rawBytes += strips.get(s).length;
+            compressedBytes += compressed.get(s).length;
+        }
+        // Keep the last 32K of data, which may span several strips and earlier rows.
+        List<byte[]> pieces = new ArrayList<byte[]>(strips);
+        pieces.add(0, dictionary);
+        int length = 0;
+        for (byte[] piece : pieces)
+            length += piece.length;
+        byte[] newDictionary = new byte[Math.min(DICTIONARY_SIZE, length)];
+        int end = newDictionary.length, n;
+        for (int s = pieces.size() - 1; (s >= 0) && (end > 0); s--) {
+            n = Math.min(end, pieces.get(s).length);
+            System.arraycopy(pieces.get(s), pieces.get(s).length - n, newDictionary, end - n, n);
+            end -= n;
+        }
+        dictionary = newDictionary;
+        readRow(band, numRows - 1, lastRow);
+        rowsWritten += numRows;
+    }
+
+    /* Complete the image, after all its rows have been written. The underlying stream is
+    not closed. */
+    public void finish() throws IOException {
+        if (rowsWritten != height)
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written");
+        idat.write(new byte[] {(byte)(adler >> 24), (byte)(adler >> 16), (byte)(adler >> 8), (byte)adler}, 0, 4);
+        idat.flush();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /* Number of bytes of filtered image data compressed so far. */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /* Run the tasks on the executor, if any, and return their results in order. */
+    private <T> List<T> run(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<T>();
+        try {
+            if (executor == null) {
+                for (Callable<T> task : tasks)
+                    results.add(task.call());
+            } else {
+                for (Future<T> future : executor.invokeAll(tasks))
+                    results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        return(results);
+    }
+
+    /* Filter rows of the band, each with the filter type in front. Every row gets the filter
+    that gives the smallest sum of absolute differences, the usual heuristic for choosing
+    the filter that compresses best. Indexed rows are not filtered, since differences of
+    palette indices have no meaning. The row above the first row of the band is the last
+    row of the previous band. */
+    private byte[] filterRows(BufferedImage band, int firstRow, int endRow) {
+        byte[] filtered = new byte[(endRow - firstRow) * rowBytes];
+        int rowLength = rowBytes - 1;
+        byte[] row = new byte[rowLength];
+        byte[] above = new byte[rowLength];
+        if (firstRow == 0)
+            System.arraycopy(lastRow, 0, above, 0, rowLength);
+        else
+            readRow(band, firstRow - 1, above);
+        byte[] candidate = new byte[rowLength];
+        byte[] swap;
+        long cost, bestCost;
+        int offset = 0;
+        for (int r = firstRow; r < endRow; r++) {
+            readRow(band, r, row);
+            bestCost = Long.MAX_VALUE;
+            for (int filter = 0; filter < ((palette == null) ? NUM_FILTERS : 1); filter++) {
+                cost = filter(filter, row, above, candidate, bytesPerPixel);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    filtered[offset] = (byte)filter;
+                    System.arraycopy(candidate, 0, filtered, offset + 1, rowLength);
+                }
+            }
+            offset += rowBytes;
+            swap = above;
+            above = row;
+            row = swap;
+        }
+        return(filtered);
+    }
+
+    /* Read one row of the band as RGB bytes, or palette indices. */
+    private void readRow(BufferedImage band, int r, byte[] row) {
+        if (palette != null) {
+            band.getRaster().getDataElements(0, r, width, 1, row);
+            return;
+        }
+        int[] pixels = new int[width];  // not shared, rows are read by several threads
+        if ((band.getType() == BufferedImage.TYPE_INT_RGB) && (band.getRaster().getDataBuffer() instanceof DataBufferInt))
+            band.getRaster().getDataElements(0, r, width, 1, pixels);
+        else
+            band.getRGB(0, r, width, 1, pixels, 0, width);
+        int i = 0;
+        for (int x = 0; x < width; x++) {
+            row[i++] = (byte)(pixels[x] >> 16);
+            row[i++] = (byte)(pixels[x] >> 8);
+            row[i++] = (byte)pixels[x];
+        }
+    }
+
+    /* Apply one of the PNG filters (None, Sub, Up, Average, Paeth) to a row, and return the
+    sum of the absolute values of the filtered bytes (taken as signed). */
+    private static long filter(int filter, byte[] row, byte[] above, byte[] filtered, int bytesPerPixel) {
+        int length = row.length;
+        int i;
+        switch (filter) {
+            case 0:
+                System.arraycopy(row, 0, filtered, 0, length);
+                break;
+            case 1:
+                for (i = 0; i < bytesPerPixel; i++)
+                    filtered[i] = row[i];
+                for (i = bytesPerPixel; i < length; i++)
+                    filtered[i] = (byte)(row[i] - row[i - bytesPerPixel]);
+                break;
+            case 2:
+                for (i = 0; i < length; i++)
+                    filtered[i] = (byte)(row[i] - above[i]);
+                break;
+            case 3:
+                for (i = 0; i < bytesPerPixel; i++)
+                    filtered[i] = (byte)(row[i] - ((above[i] & 0xff) >> 1));
+                for (i = bytesPerPixel; i < length; i++)
+                    filtered[i] = (byte)(row[i] - (((row[i - bytesPerPixel] & 0xff) + (above[i] & 0xff)) >> 1));
+                break;
+            default:
+                int left, up, upperLeft, p, pa, pb, pc;
+                for (i = 0; i < bytesPerPixel; i++)
+                    filtered[i] = (byte)(row[i] - above[i]);
+                for (i = bytesPerPixel; i < length; i++) {
+                    left = row[i - bytesPerPixel] & 0xff;
+                    up = above[i] & 0xff;
+                    upperLeft = above[i - bytesPerPixel] & 0xff;
+                    p = left + up - upperLeft;
+                    pa = Math.abs(p - left);
+                    pb = Math.abs(p - up);
+                    pc = Math.abs(p - upperLeft);
+                    filtered[i] = (byte)(row[i] - (((pa <= pb) && (pa <= pc)) ? left : (pb <= pc) ? up : upperLeft));
+                }
+                break;
+        }
+        long cost = 0;
+        for (i = 0; i < length; i++)
+            cost += Math.abs(filtered[i]);
+        return(cost);
+    }
+
+    /* Deflate one strip (without zlib header), using the end of the previous data as
+    dictionary. All strips but the last end with a sync flush, on a byte boundary, so
+    the next strip can follow directly. */
+    private byte[] compress(byte[] strip, byte[] previous, boolean last) {
+        Deflater deflater = new Deflater(compressionLevel, true);
+        int dictionaryLength = Math.min(DICTIONARY_SIZE, previous.length);
+        if (dictionaryLength > 0)
+            deflater.setDictionary(previous, previous.length - dictionaryLength, dictionaryLength);
+        deflater.setInput(strip);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(strip.length / 4 + 64);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int n;
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+        } else {
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, n);
+            } while (n == buffer.length);
+        }
+        deflater.end();
+        return(compressed.toByteArray());
+    }
+
+    /* Checksum of two pieces of data one after the other, from the checksums of the pieces
+    and the length of the second piece (as zlib's adler32_combine). */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum2 >= (2 * ADLER_BASE))
+            sum2 -= 2 * ADLER_BASE;
+        if (sum2 >= ADLER_BASE)
+            sum2 -= ADLER_BASE;
+        return(sum1 | (sum2 << 16));
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int)crc.getValue());
+    }
+
+    /* Collects the compressed data and writes it as IDAT chunks of up to CHUNK_SIZE bytes. */
+    private class ChunkOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size;
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int offset, int length) throws IOException {
+            int n;
+            while (length > 0) {
+                n = Math.min(length, CHUNK_SIZE - size);
+                System.arraycopy(b, offset, buffer, size, n);
+                size += n;
+                offset += n;
+                length -= n;
+                if (size == CHUNK_SIZE)
+                    flush();
+            }
+        }
+
+        @Override public void flush() throws IOException {
+            if (size > 0) {
+                writeChunk("IDAT", buffer, size);
+                size = 0;
+            }
+        }
+
+        @Override public void close() throws IOException {
+            flush();
+        }
+    }
+}
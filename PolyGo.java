@@ -54,6 +54,31 @@ public class PolyGo {
     }
     
     public static void main(String[] args) {
+        // Render PolyGo files from the command line, without the GUI (see BatchRenderer).
+        if ((args.length > 0) && args[0].equals("--batch")) {
+            BatchRenderer.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Convert PolyGo files from Java serialization to the binary format (see SchemeFormat).
+        if ((args.length > 0) && args[0].equals("--convert")) {
+            SchemeFormat.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Create and read pattern libraries (see PatternLibrary).
+        if ((args.length > 0) && args[0].equals("--library")) {
+            PatternLibrary.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Serve rendered patterns over HTTP (see RenderServer).
+        if ((args.length > 0) && args[0].equals("--serve")) {
+            try {
+                RenderServer.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            } catch (Exception e) {
+                System.err.println(e);
+                System.exit(1);
+            }
+            return;
+        }
         try 
         { 
             UIManager.setLookAndFeel("com.sun.java.swing.plaf.nimbus.NimbusLookAndFeel"); 
@@ -0,0 +1,213 @@
+package polygo;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* RegionMap records, for every pixel of a rendered pattern, which region of the pattern it
+belongs to: the space between two polygons next to one of the sides, the inner polygon or
+the background, and the side of an outline drawn over it, if any. Since the colors of all
+the regions follow from the drawing scheme, a pattern whose shapes did not change can be
+recolored with one table lookup per pixel instead of being rendered again.
+Every pixel is sampled SUBPIXELS by SUBPIXELS times. A pixel on the edge of regions keeps
+the share of its samples in each of them, and is recolored with the average of their
+colors, so recolored images are antialiased as well. */
+public class RegionMap {
+    // Region numbers in the fill map: the background, the inside of the innermost polygon,
+    // and then the space between level l and level l+1 next to side s, numbered
+    // FIRST_FILL + l * numSides + s. In the line map, side s of the outline of level l is
+    // numbered FIRST_LINE + l * numSides + s, and NO_LINE marks pixels without outlines.
+    static final int BACKGROUND = 0;
+    static final int INNER_FILL = 1;
+    static final int FIRST_FILL = 2;
+    static final int NO_LINE = 0;
+    static final int FIRST_LINE = 1;
+    // Regions are rasterized as 24-bit RGB colors, so there can be at most this many.
+    static final int MAX_REGIONS = 1 << 24;
+    // Samples of each pixel in both directions, and the most samples rasterized at once.
+    static final int SUBPIXELS = 4;
+    static final int BAND_SAMPLES = 1 << 20;
+    private static final int SAMPLES = SUBPIXELS * SUBPIXELS;
+    // Rows recolored by each task.
+    private static final int ROWS_PER_TASK = 32;
+
+    final int width, height;
+    final int numSides, levels;
+    // Nesting level of the first level mapped (see PatternRenderer.setLevelRange).
+    final int firstLevel;
+    // Geometry version of the drawing scheme the map was rendered from.
+    final long geometryVersion;
+    // Outlines that overlap are stacked in the order of their colors in the line palette,
+    // which stays the same as long as the line color scheme and the number of line colors do.
+    final DrawingScheme.ColorScheme lineColorScheme;
+    final int numLineColors;
+    // The regions of the pixels whose samples are all in the same region. For a pixel on an
+    // edge, the fill map holds ~e instead, where e is the number of the edge: the regions of
+    // its samples are entries edgeOffsets[e] up to edgeOffsets[e + 1] of edgeFills and
+    // edgeLines, each with the number of samples in edgeCounts.
+    final int[] fillRegions, lineRegions;
+    private int[] edgeOffsets = new int[1];
+    private int[] edgeFills = new int[0], edgeLines = new int[0];
+    private byte[] edgeCounts = new byte[0];
+    private int numEdges, numEntries;
+
+    /* Create an empty map; its regions are added by addBand. */
+    RegionMap(int width, int height, int numSides, int firstLevel, int levels, long geometryVersion,
+            DrawingScheme.ColorScheme lineColorScheme, int numLineColors) {
+        this.width = width;
+        this.height = height;
+        this.numSides = numSides;
+        this.firstLevel = firstLevel;
+        this.levels = levels;
+        this.geometryVersion = geometryVersion;
+        this.lineColorScheme = lineColorScheme;
+        this.numLineColors = numLineColors;
+        fillRegions = new int[width * height];
+        lineRegions = new int[width * height];
+    }
+
+    /* Add the regions of a band of rows, starting at the given top row, from images of its
+    fill and line regions (TYPE_INT_RGB, SUBPIXELS times the size of the band). */
+    void addBand(int top, int rows, int[] fillSamples, int[] lineSamples) {
+        int sampleWidth = width * SUBPIXELS;
+        int[] fills = new int[SAMPLES];
+        int[] lines = new int[SAMPLES];
+        int[] counts = new int[SAMPLES];
+        int sample, fill, line, distinct, d;
+        boolean uniform;
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < width; x++) {
+                // Collect the distinct pairs of regions of the samples of the pixel.
+                distinct = 0;
+                for (int sy = 0; sy < SUBPIXELS; sy++) {
+                    sample = (y * SUBPIXELS + sy) * sampleWidth + x * SUBPIXELS;
+                    for (int sx = 0; sx < SUBPIXELS; sx++, sample++) {
+                        fill = fillSamples[sample] & 0xffffff;
+                        line = lineSamples[sample] & 0xffffff;
+                        for (d = 0; (d < distinct) && ((fills[d] != fill) || (lines[d] != line)); d++)
+                            ;
+                        if (d == distinct) {
+                            fills[d] = fill;
+                            lines[d] = line;
+                            counts[d] = 0;
+                            distinct++;
+                        }
+                        counts[d]++;
+                    }
+                }
+                uniform = (distinct == 1);
+                fillRegions[(top + y) * width + x] = uniform ? fills[0] : ~numEdges;
+                lineRegions[(top + y) * width + x] = uniform ? lines[0] : NO_LINE;
+                if (!uniform)
+                    addEdge(fills, lines, counts, distinct);
+            }
+        }
+    }
+
+    private void addEdge(int[] fills, int[] lines, int[] counts, int distinct) {
+        if (numEntries + distinct > edgeFills.length) {
+            int capacity = Math.max(2 * edgeFills.length, numEntries + distinct);
+            edgeFills = Arrays.copyOf(edgeFills, capacity);
+            edgeLines = Arrays.copyOf(edgeLines, capacity);
+            edgeCounts = Arrays.copyOf(edgeCounts, capacity);
+        }
+        for (int d = 0; d < distinct; d++) {
+            edgeFills[numEntries] = fills[d];
+            edgeLines[numEntries] = lines[d];
+            edgeCounts[numEntries] = (byte)counts[d];
+            numEntries++;
+        }
+        if (numEdges + 2 > edgeOffsets.length)
+            edgeOffsets = Arrays.copyOf(edgeOffsets, 2 * edgeOffsets.length + 1);
+        edgeOffsets[++numEdges] = numEntries;
+    }
+
+    /* Check whether the map can be used for recoloring the drawing scheme at the given size. */
+    public boolean fits(SchemeSnapshot drawingScheme, int width, int height) {
+        return((drawingScheme.getGeometryVersion() == geometryVersion) && (width == this.width) && (height == this.height)
+            && (drawingScheme.lineColorScheme == lineColorScheme) && (drawingScheme.lineColors.size() == numLineColors));
+    }
+
+    /* Color an image (of the size of the map, TYPE_INT_RGB) with the colors of the drawing
+    scheme, in parallel rows on the given pool. */
+    public void recolor(SchemeSnapshot drawingScheme, BufferedImage image, ForkJoinPool pool) {
+        // The color of every region, as in PatternRenderer.
+        final int[] fillColors = new int[FIRST_FILL + Math.max(levels - 1, 0) * numSides];
+        final int[] lineColors = new int[FIRST_LINE + levels * numSides];
+        fillColors[BACKGROUND] = drawingScheme.backgroundColor.getRGB();
+        fillColors[INNER_FILL] = (drawingScheme.innerFill ? drawingScheme.innerFillColor : drawingScheme.backgroundColor).getRGB();
+        DrawingScheme.ColorTable fillTable = drawingScheme.getFillColorTable();
+        DrawingScheme.ColorTable lineTable = drawingScheme.getLineColorTable();
+        int entry;
+        for (int level = 0; level < levels - 1; level++) {
+            entry = fillTable.start(firstLevel + level);
+            for (int s = 0; s < numSides; s++) {
+                fillColors[FIRST_FILL + level * numSides + s] = fillTable.argb[entry];
+                if (++entry == fillTable.period())
+                    entry = 0;
+            }
+        }
+        // Without outlines, the sides show the fill below them (0 marks them).
+        for (int level = 0; (level < levels) && !lineTable.isEmpty(); level++) {
+            // The innermost polygon has always been drawn with the colors of the next iteration.
+            entry = lineTable.start(firstLevel + ((level < levels - 1) ? level : level + 1));
+            for (int s = 0; s < numSides; s++) {
+                lineColors[FIRST_LINE + level * numSides + s] = lineTable.argb[entry];
+                if (++entry == lineTable.period())
+                    entry = 0;
+            }
+        }
+        final int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        pool.invoke(new RecolorTask(0, height, fillColors, lineColors, pixels));
+    }
+
+    /* Recolors a range of rows, splitting it until few rows are left. */
+    private class RecolorTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int firstRow, endRow;
+        final int[] fillColors, lineColors, pixels;
+
+        RecolorTask(int firstRow, int endRow, int[] fillColors, int[] lineColors, int[] pixels) {
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            this.fillColors = fillColors;
+            this.lineColors = lineColors;
+            this.pixels = pixels;
+        }
+
+        @Override protected void compute() {
+            if (endRow - firstRow > ROWS_PER_TASK) {
+                int middle = (firstRow + endRow) >>> 1;
+                invokeAll(new RecolorTask(firstRow, middle, fillColors, lineColors, pixels),
+                    new RecolorTask(middle, endRow, fillColors, lineColors, pixels));
+                return;
+            }
+            int fill, edge, color, count, red, green, blue;
+            for (int i = firstRow * width; i < endRow * width; i++) {
+                fill = fillRegions[i];
+                if (fill >= 0) {
+                    pixels[i] = color(fill, lineRegions[i]);
+                    continue;
+                }
+                // Average the colors of the samples of a pixel on an edge.
+                edge = ~fill;
+                red = green = blue = SAMPLES / 2;
+                for (int e = edgeOffsets[edge]; e < edgeOffsets[edge + 1]; e++) {
+                    color = color(edgeFills[e], edgeLines[e]);
+                    count = edgeCounts[e];
+                    red += count * ((color >> 16) & 0xff);
+                    green += count * ((color >> 8) & 0xff);
+                    blue += count * (color & 0xff);
+                }
+                pixels[i] = ((red / SAMPLES) << 16) | ((green / SAMPLES) << 8) | (blue / SAMPLES);
+            }
+        }
+
+        /* The color of a sample, from its outline if it has one with a color, or else its fill. */
+        private int color(int fill, int line) {
+            int lineColor = (line == NO_LINE) ? 0 : lineColors[line];
+            return((lineColor != 0) ? lineColor : fillColors[fill]);
+        }
+    }
+}
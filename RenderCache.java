@@ -0,0 +1,265 @@
+package polygo;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* RenderCache keeps encoded images of patterns (e.g., PNG files) that have been rendered, so
+that a pattern asked for again at the same size is not rendered again. Images are looked up by
+a key made of the fingerprint of the drawing scheme, the size and the format, so schemes that
+only differ in settings that are not drawn share their images. The images used most recently
+are kept in memory, up to a budget in bytes. Optionally they are also written to a directory,
+with its own budget, where they survive restarts. The cache can be used from several threads. */
+public class RenderCache {
+    // Suffix of the image files in the cache directory.
+    private static final String FILE_SUFFIX = ".cached";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final long maxBytes;
+    // Images by key, the least recently used first.
+    private final LinkedHashMap<String, byte[]> images = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long bytes;
+    private final File directory;
+    private final long maxDiskBytes;
+    // Sizes of the image files by key, the least recently used first.
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long diskBytes;
+    private long hits, diskHits, misses, evictions, diskEvictions;
+
+    /* A cache of up to maxBytes of images in memory only. */
+    public RenderCache(long maxBytes) {
+        this(maxBytes, null, 0);
+    }
+
+    /* A cache of up to maxBytes of images in memory, and maxDiskBytes of image files in the
+    given directory (none if null). The files already in the directory are kept, the most
+    recently used ones if there are too many. */
+    public RenderCache(long maxBytes, File directory, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        if (directory != null) {
+            directory.mkdirs();
+            File[] existing = directory.listFiles();
+            if (existing != null) {
+                Arrays.sort(existing, new Comparator<File>() {
+                    @Override public int compare(File a, File b) {
+                        return(Long.compare(a.lastModified(), b.lastModified()));
+                    }});
+                for (File file : existing) {
+                    String name = file.getName();
+                    if (file.isFile() && name.endsWith(FILE_SUFFIX)) {
+                        files.put(name.substring(0, name.length() - FILE_SUFFIX.length()), file.length());
+                        diskBytes += file.length();
+                    } else if (file.isFile() && name.endsWith(TEMPORARY_SUFFIX)) { // left by a crash
+                        file.delete();
+                    }
+                }
+                synchronized (this) {
+                    evictFiles();
+                }
+            }
+        }
+    }
+
+    /* Key of the image of a drawing scheme at the given size in the given format (a file
+    extension). The key can be used as a file name. */
+    public static String key(SchemeSnapshot drawingScheme, int width, int height, String format) {
+        return(drawingScheme.fingerprint() + "-" + width + "x" + height + "." + format.toLowerCase());
+    }
+
+    /* Key of the image of levels firstLevel to lastLevel of a drawing scheme (see
+    PatternRenderer.setLevelRange), like key above. */
+    public static String key(SchemeSnapshot drawingScheme, int width, int height, int firstLevel, int lastLevel,
+            String format) {
+        return(drawingScheme.fingerprint() + "-" + width + "x" + height + "-" + firstLevel + "-" + lastLevel
+            + "." + format.toLowerCase());
+    }
+
+    /* The image with the given key, or null if it is not in the cache. */
+    public byte[] get(String key) {
+        return(get(key, true));
+    }
+
+    /* Like get, for looking again after a miss (e.g., once it is this thread's turn to render
+    the image, in case another thread has rendered it meanwhile), without counting another miss. */
+    public byte[] getAgain(String key) {
+        return(get(key, false));
+    }
+
+    private byte[] get(String key, boolean countMiss) {
+        synchronized (this) {
+            byte[] image = images.get(key);
+            if (image != null) {
+                hits++;
+                if (!countMiss)
+                    misses--;
+                return(image);
+            }
+            if (!files.containsKey(key)) {
+                if (countMiss)
+                    misses++;
+                return(null);
+            }
+        }
+        // Read the file without holding up the other threads.
+        File file = file(key);
+        byte[] image = null;
+        try {
+            image = readFile(file);
+            file.setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+        }
+        synchronized (this) {
+            if (image == null) {
+                Long size = files.remove(key);
+                if (size != null)
+                    diskBytes -= size;
+                if (countMiss)
+                    misses++;
+                return(null);
+            }
+            files.get(key); // now the most recently used
+            diskHits++;
+            hits++;
+            if (!countMiss)
+                misses--; // counted as a miss the first time
+            addImage(key, image);
+        }
+        return(image);
+    }
+
+    /* Add an image to the cache (and to the cache directory, if any). */
+    public void put(String key, byte[] image) {
+        synchronized (this) {
+            addImage(key, image);
+            if ((directory == null) || files.containsKey(key) || (image.length > maxDiskBytes))
+                return;
+        }
+        // Write to a temporary file first, so that a partial file is never taken for an image.
+        File file = file(key);
+        File temporary = new File(directory, key + "." + Thread.currentThread().getId() + TEMPORARY_SUFFIX);
+        try {
+            OutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(image);
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file)) {
+                file.delete();
+                if (!temporary.renameTo(file))
+                    throw new IOException("Cannot rename " + temporary);
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            return;
+        }
+        synchronized (this) {
+            Long size = files.put(key, (long)image.length);
+            diskBytes += image.length - ((size == null) ? 0 : size);
+            evictFiles();
+        }
+    }
+
+    private File file(String key) {
+        return(new File(directory, key + FILE_SUFFIX));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int)file.length()];
+            int offset = 0, n;
+            while ((offset < data.length) && ((n = in.read(data, offset, data.length - offset)) > 0))
+                offset += n;
+            if (offset < data.length)
+                throw new IOException("Truncated " + file);
+            return(data);
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Add an image in memory, making room for it. Images larger than the whole budget are
+    not kept. Call with the lock held. */
+    private void addImage(String key, byte[] image) {
+        if (image.length > maxBytes)
+            return;
+        byte[] old = images.put(key, image);
+        bytes += image.length - ((old == null) ? 0 : old.length);
+        Iterator<Map.Entry<String, byte[]>> i = images.entrySet().iterator();
+        while ((bytes > maxBytes) && i.hasNext()) {
+            bytes -= i.next().getValue().length;
+            i.remove();
+            evictions++;
+        }
+    }
+
+    /* Delete the least recently used files until they fit in the budget. Call with the lock held. */
+    private void evictFiles() {
+        List<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> i = files.entrySet().iterator();
+        while ((diskBytes > maxDiskBytes) && i.hasNext()) {
+            Map.Entry<String, Long> entry = i.next();
+            diskBytes -= entry.getValue();
+            evicted.add(entry.getKey());
+            i.remove();
+            diskEvictions++;
+        }
+        for (String key : evicted)
+            file(key).delete();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /* Hits that were read from the cache directory rather than found in memory. */
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getDiskEvictions() {
+        return diskEvictions;
+    }
+
+    /* Bytes of images in memory. */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    public synchronized double getHitRatio() {
+        return((hits + misses == 0) ? 0 : (double)hits / (hits + misses));
+    }
+
+    @Override public synchronized String toString() {
+        return("cache: " + images.size() + " images, " + String.format("%.1f", bytes / 1e6) + " of "
+            + String.format("%.1f", maxBytes / 1e6) + " MB" + ((directory == null) ? "" : (" (disk: " + files.size()
+            + " images, " + String.format("%.1f", diskBytes / 1e6) + " of " + String.format("%.1f", maxDiskBytes / 1e6)
+            + " MB)")) + ", " + hits + " hits (" + diskHits + " from disk), " + misses + " misses ("
+            + String.format("%.0f", 100 * getHitRatio()) + "% hits), " + evictions + " evictions"
+            + ((directory == null) ? "" : (" (" + diskEvictions + " from disk)")));
+    }
+}
@@ -0,0 +1,8 @@
+package polygo;
+
+/* A RenderMonitor lets the code that requested a render stop it before it completes,
+e.g., when the drawing scheme changed again and the result is no longer needed. */
+public interface RenderMonitor {
+    /* Checked regularly while rendering. Once it returns true, rendering stops. */
+    boolean isCancelled();
+}
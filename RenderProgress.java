@@ -0,0 +1,9 @@
+package polygo;
+
+/* A RenderProgress is a RenderMonitor that is also told how far a long render has got,
+e.g., for showing a progress bar while a large image is exported. */
+public interface RenderProgress extends RenderMonitor {
+    /* Called as the render goes on (e.g., after each band of an image), with the number
+    of steps done so far and the number of steps in all. */
+    void progressed(int done, int total);
+}
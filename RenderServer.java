@@ -0,0 +1,596 @@
+package polygo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* RenderServer renders patterns on demand over HTTP, as PNG images. Run with:
+    java -cp PolyGo.jar polygo.PolyGo --serve [-port N] [-bind ADDRESS] [-renders N] [-cache MB]
+        [-diskCache DIRECTORY MB] [-load CLIENTS REQUESTS]
+The server only listens on the loopback interface, unless -bind gives another address
+(e.g., 0.0.0.0 for all interfaces).
+GET /render takes the drawing scheme as query parameters, and POST /render as a JSON object
+with the same names (see readScheme), e.g.
+    /render?width=800&height=600&sides=7&displacement=10&fillColorScheme=custom&fillColors=ff0000,00ff00
+With levels=FIRST-LAST, only those levels of a pattern with relative displacement are
+rendered, zoomed in to fill the image (see PatternRenderer.setLevelRange).
+GET /stats reports the requests served so far.
+Images are kept in a RenderCache (-cache, in megabytes of memory, 0 for none; -diskCache
+to keep them in a directory as well), so popular patterns are only rendered once, and a
+request with a matching If-None-Match gets a 304 without any rendering at all.
+Requests are handled on virtual threads where the Java runtime has them (on a thread per
+request otherwise), but only a limited number of images are rasterized at a time, so that
+a burst of requests cannot run out of memory; the others wait their turn, up to a timeout.
+With -load, the server runs a load test against itself on the local machine and exits. */
+public class RenderServer {
+    private static class Settings {
+        static final int DEFAULT_PORT = 8080;
+        static final int DEFAULT_WIDTH = 500;
+        static final int DEFAULT_HEIGHT = 500;
+        // Largest image served, in pixels.
+        static final long MAX_PIXELS = 16L * 1000 * 1000;
+        // Longest wait for a free rasterization slot before a request is turned down.
+        static final long RENDER_TIMEOUT_SECONDS = 30;
+        // Largest difference, in degrees, between the last angle given and the one that
+        // follows from the others.
+        static final double ANGLE_TOLERANCE = 0.5;
+        // Largest JSON request body.
+        static final int MAX_BODY_SIZE = 64 * 1024;
+        // Memory for images already rendered, in megabytes.
+        static final long DEFAULT_CACHE_MB = 64;
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore renders;
+    private final int maxRenders;
+    // Images rendered already, if any are kept.
+    private final RenderCache cache;
+    // Counters of requests, reported by /stats.
+    private final AtomicLong requests = new AtomicLong(), rendered = new AtomicLong(), cached = new AtomicLong(),
+        rejected = new AtomicLong(), failed = new AtomicLong(), bytesSent = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /* A server on the given address and port (0 for any free port) that rasterizes up to
+    maxRenders images at a time, and keeps the images in the given cache (none if null).
+    It is not started yet. */
+    public RenderServer(InetAddress address, int port, int maxRenders, RenderCache cache) throws IOException {
+        this.maxRenders = maxRenders;
+        this.cache = cache;
+        renders = new Semaphore(maxRenders, true);
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/render", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                handleRender(exchange);
+            }});
+        server.createContext("/stats", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                sendText(exchange, 200, statisticsText());
+            }});
+    }
+
+    /* A virtual thread per request if the runtime supports it (Java 21 and later),
+    else a (daemon) platform thread per request. */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return((ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (Exception e) {
+            return(Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PolyGo request " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }}));
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /* The port the server listens on. */
+    public int getPort() {
+        return(server.getAddress().getPort());
+    }
+
+    private void handleRender(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            Map<String, String> parameters;
+            if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            } else if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                parameters = JsonReader.parseObject(readBody(exchange.getRequestBody()));
+            } else {
+                failed.incrementAndGet();
+                sendText(exchange, 405, "Use GET or POST\n");
+                return;
+            }
+            int width = intParameter(parameters, "width", Settings.DEFAULT_WIDTH, 1, Integer.MAX_VALUE);
+            int height = intParameter(parameters, "height", Settings.DEFAULT_HEIGHT, 1, Integer.MAX_VALUE);
+            if ((long)width * height > Settings.MAX_PIXELS)
+                throw new IllegalArgumentException("Image larger than " + Settings.MAX_PIXELS + " pixels");
+            SchemeSnapshot drawingScheme = readScheme(parameters).snapshot();
+            int[] levels = readLevelRange(parameters);
+            if (levels != null)
+                PatternRenderer.checkLevelRange(drawingScheme, levels[0]);
+            String key = null;
+            if (cache != null) {
+                key = (levels == null) ? RenderCache.key(drawingScheme, width, height, "png")
+                    : RenderCache.key(drawingScheme, width, height, levels[0], levels[1], "png");
+                // The key names the image exactly, so it serves as its entity tag.
+                exchange.getResponseHeaders().set("ETag", "\"" + key + "\"");
+                String match = exchange.getRequestHeaders().getFirst("If-None-Match");
+                if ((match != null) && match.contains("\"" + key + "\"")) {
+                    cached.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                byte[] image = cache.get(key);
+                if (image != null) {
+                    cached.incrementAndGet();
+                    sendPng(exchange, image);
+                    return;
+                }
+            }
+            waiting.incrementAndGet();
+            boolean acquired;
+            try {
+                acquired = renders.tryAcquire(Settings.RENDER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } finally {
+                waiting.decrementAndGet();
+            }
+            if (!acquired) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendText(exchange, 503, "Too many renders in progress\n");
+                return;
+            }
+            try {
+                // Statistics are not shared between threads, so each request has its own.
+                RenderStatistics statistics = new RenderStatistics();
+                PatternRenderer renderer = new PatternRenderer(statistics);
+                if (levels != null)
+                    renderer.setLevelRange(levels[0], levels[1]);
+                if (cache == null) {
+                    // The image is streamed as it is encoded, a band at a time.
+                    exchange.getResponseHeaders().set("Content-Type", "image/png");
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream out = exchange.getResponseBody();
+                    renderer.writePng(drawingScheme, width, height, out);
+                    out.close();
+                } else {
+                    // The same image may have been rendered while this request was waiting.
+                    byte[] image = cache.getAgain(key);
+                    if (image == null) {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        renderer.writePng(drawingScheme, width, height, out);
+                        image = out.toByteArray();
+                        cache.put(key, image);
+                    } else {
+                        cached.incrementAndGet();
+                    }
+                    sendPng(exchange, image);
+                }
+                if (statistics.lastExportBytes > 0) {
+                    rendered.incrementAndGet();
+                    bytesSent.addAndGet(statistics.lastExportBytes);
+                }
+            } finally {
+                renders.release();
+            }
+        } catch (IllegalArgumentException e) {
+            failed.incrementAndGet();
+            sendText(exchange, 400, e.getMessage() + "\n");
+        } catch (InterruptedException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            sendError(exchange, e);
+        } catch (OutOfMemoryError e) {  // e.g., too many large images at once
+            failed.incrementAndGet();
+            sendError(exchange, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String statisticsText() {
+        return("requests: " + requests.get() + "\nrendered: " + rendered.get() + "\nfrom cache: " + cached.get() + "\nrejected: " + rejected.get()
+            + "\nfailed: " + failed.get() + "\nrendering: " + (maxRenders - renders.availablePermits())
+            + "\nwaiting: " + waiting.get() + "\nmax renders: " + maxRenders + "\nuncompressed bytes: " + bytesSent.get() + "\n"
+            + ((cache == null) ? "" : (cache + "\n")));
+    }
+
+    private static void sendPng(HttpExchange exchange, byte[] image) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        exchange.sendResponseHeaders(200, image.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(image);
+        out.close();
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /* Report an unexpected failure, and answer with a 500 unless the image was already
+    being sent (in which case the connection is just closed). */
+    private static void sendError(HttpExchange exchange, Throwable error) {
+        System.err.println("Render failed: " + error);
+        try {
+            sendText(exchange, 500, "Render failed\n");
+        } catch (IOException e) {
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            body.write(buffer, 0, n);
+            if (body.size() > Settings.MAX_BODY_SIZE)
+                throw new IllegalArgumentException("Request body too large");
+        }
+        return(body.toString("UTF-8"));
+    }
+
+    /* Parameters of a query string, by name. */
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        if ((query == null) || query.isEmpty())
+            return(parameters);
+        try {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals < 0)
+                    parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+                else
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid query");
+        }
+        return(parameters);
+    }
+
+    /* Build a drawing scheme from request parameters, starting from the default scheme:
+        sides, rotation, angles (list, degrees), displacementType (relative or fixed),
+        displacement, direction (clockwise or counterclockwise), depth (number, or infinite),
+        lineColorScheme and fillColorScheme (one_color, one_side_one_color,
+        one_polygon_one_color, custom or none), lineColors and fillColors (lists of
+        RRGGBB colors), lineWidth, background and innerFill (a color, or none).
+    The changes are made through the same methods as the control panel, so they are
+    checked against the same limits. */
+    static DrawingScheme readScheme(Map<String, String> parameters) {
+        DrawingScheme drawingScheme = new DrawingScheme();
+        String value;
+        if (parameters.containsKey("sides"))
+            drawingScheme.numSidesChange(intParameter(parameters, "sides", 0, 3, DrawingScheme.Limits.MAX_NUM_SIDES));
+        if (parameters.containsKey("rotation"))
+            drawingScheme.rotationChange(intParameter(parameters, "rotation", 0,
+                DrawingScheme.Limits.MIN_ROTATION, DrawingScheme.Limits.MAX_ROTATION));
+        value = parameters.get("angles");
+        if (value != null) {
+            String[] angles = value.split(",");
+            if (angles.length != drawingScheme.numSides)
+                throw new IllegalArgumentException("angles must have one angle per side");
+            // Each change adjusts the next angle, so the last one follows from the others.
+            // A change that would break the angle limits leaves the base polygon as it was.
+            for (int a = 0; a < angles.length - 1; a++) {
+                Geometry.PolygonD basePolygon = drawingScheme.basePolygon;
+                drawingScheme.angleChange(a, doubleValue(angles[a], "angles"));
+                if (drawingScheme.basePolygon == basePolygon)
+                    throw new IllegalArgumentException("angles are outside the limits of the polygon");
+            }
+            int last = angles.length - 1;
+            if (Math.abs(drawingScheme.angles[last] - doubleValue(angles[last], "angles")) > Settings.ANGLE_TOLERANCE)
+                throw new IllegalArgumentException("angles must add up to " + (180 * (angles.length - 2)) + " degrees");
+        }
+        value = parameters.get("displacementType");
+        if (value != null) {
+            if (value.equalsIgnoreCase("relative"))
+                drawingScheme.relativeDisplacementSelected();
+            else if (value.equalsIgnoreCase("fixed"))
+                drawingScheme.fixedDisplacementSelected();
+            else
+                throw new IllegalArgumentException("displacementType must be relative or fixed");
+        }
+        if (parameters.containsKey("displacement"))
+            drawingScheme.displacementChange(intParameter(parameters, "displacement", 0,
+                DrawingScheme.Limits.MIN_DISPLACEMENT, DrawingScheme.Limits.maxDisplacement(drawingScheme.displacementType)));
+        value = parameters.get("direction");
+        if (value != null) {
+            if (value.equalsIgnoreCase("clockwise"))
+                drawingScheme.clockwiseDirectionSelected();
+            else if (value.equalsIgnoreCase("counterclockwise"))
+                drawingScheme.counterclockwiseDirectionSelected();
+            else
+                throw new IllegalArgumentException("direction must be clockwise or counterclockwise");
+        }
+        value = parameters.get("depth");
+        if ((value != null) && !value.equalsIgnoreCase("infinite")) {
+            drawingScheme.infiniteChange(false);
+            drawingScheme.depthChange(intParameter(parameters, "depth", 0, 1, DrawingScheme.Limits.MAX_ITERATIONS));
+        }
+        if (parameters.containsKey("lineColorScheme"))
+            drawingScheme.colorSchemeChange(colorScheme(parameters.get("lineColorScheme")), DrawingScheme.PaletteType.LINE);
+        if (parameters.containsKey("fillColorScheme"))
+            drawingScheme.colorSchemeChange(colorScheme(parameters.get("fillColorScheme")), DrawingScheme.PaletteType.FILL);
+        value = parameters.get("lineColors");
+        if (value != null) {
+            List<Color> colors = colorList(value, "lineColors");
+            while (drawingScheme.lineColors.size() < colors.size())
+                drawingScheme.addLineColor();
+            while (drawingScheme.lineColors.size() > colors.size())
+                drawingScheme.removeLineColor();
+            for (int c = 0; c < colors.size(); c++)
+                drawingScheme.lineColorChange(c + 1, colors.get(c));
+        }
+        value = parameters.get("fillColors");
+        if (value != null) {
+            List<Color> colors = colorList(value, "fillColors");
+            while (drawingScheme.fillColors.size() < colors.size())
+                drawingScheme.addFillColor();
+            while (drawingScheme.fillColors.size() > colors.size())
+                drawingScheme.removeFillColor();
+            for (int c = 0; c < colors.size(); c++)
+                drawingScheme.fillColorChange(c + 1, colors.get(c));
+        }
+        if (parameters.containsKey("lineWidth"))
+            drawingScheme.lineWidthChange(intParameter(parameters, "lineWidth", 0, 1, DrawingScheme.Limits.MAX_LINE_WIDTH));
+        value = parameters.get("background");
+        if (value != null)
+            drawingScheme.backgroundColorChange(color(value, "background"));
+        value = parameters.get("innerFill");
+        if (value != null) {
+            if (value.equalsIgnoreCase("none")) {
+                drawingScheme.innerFillChange(false);
+            } else {
+                drawingScheme.innerFillChange(true);
+                drawingScheme.innerFillColorChange(color(value, "innerFill"));
+            }
+        }
+        if (!SchemeFormat.usable(drawingScheme.lineColorScheme, drawingScheme.lineColors, drawingScheme.numSides))
+            throw new IllegalArgumentException("Too few lineColors for lineColorScheme");
+        if (!SchemeFormat.usable(drawingScheme.fillColorScheme, drawingScheme.fillColors, drawingScheme.numSides))
+            throw new IllegalArgumentException("Too few fillColors for fillColorScheme");
+        return(drawingScheme);
+    }
+
+    /* The range of levels to render (FIRST-LAST, from 0), or null for the whole pattern. */
+    private static int[] readLevelRange(Map<String, String> parameters) {
+        String value = parameters.get("levels");
+        if (value == null)
+            return(null);
+        String[] range = value.trim().split("-");
+        try {
+            if (range.length == 2) {
+                int firstLevel = Integer.parseInt(range[0]), lastLevel = Integer.parseInt(range[1]);
+                if ((firstLevel >= 0) && (lastLevel >= firstLevel))
+                    return(new int[] {firstLevel, lastLevel});
+            }
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalArgumentException("levels must be FIRST-LAST, two whole numbers from 0 with FIRST at most LAST");
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name, int defaultValue, int min, int max) {
+        String value = parameters.get(name);
+        if (value == null)
+            return(defaultValue);
+        try {
+            int number = Integer.parseInt(value.trim());
+            if ((number >= min) && (number <= max))
+                return(number);
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalArgumentException(name + " must be a whole number from " + min + " to " + max);
+    }
+
+    private static double doubleValue(String value, String name) {
+        try {
+            return(Double.parseDouble(value.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be numbers");
+        }
+    }
+
+    private static DrawingScheme.ColorScheme colorScheme(String value) {
+        for (DrawingScheme.ColorScheme colorScheme : DrawingScheme.ColorScheme.values())
+            if (colorScheme.name().equalsIgnoreCase(value.trim()))
+                return(colorScheme);
+        throw new IllegalArgumentException("Unknown color scheme " + value);
+    }
+
+    private static Color color(String value, String name) {
+        String hex = value.trim();
+        if (hex.startsWith("#"))
+            hex = hex.substring(1);
+        if (hex.length() == 6) {
+            try {
+                return(new Color(Integer.parseInt(hex, 16)));
+            } catch (NumberFormatException e) {
+            }
+        }
+        throw new IllegalArgumentException(name + " must be RRGGBB colors");
+    }
+
+    private static List<Color> colorList(String value, String name) {
+        List<Color> colors = new ArrayList<Color>();
+        for (String color : value.split(","))
+            colors.add(color(color, name));
+        return(colors);
+    }
+
+    private static InetAddress bindAddress(String value) {
+        try {
+            return(InetAddress.getByName(value));
+        } catch (java.net.UnknownHostException e) {
+            throw new IllegalArgumentException(value);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int port = Settings.DEFAULT_PORT;
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int maxRenders = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int loadClients = 0, loadRequests = 0;
+        long cacheBytes = Settings.DEFAULT_CACHE_MB << 20, diskCacheBytes = 0;
+        File cacheDirectory = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-port") && (i + 1 < args.length))
+                    port = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-bind") && (i + 1 < args.length))
+                    address = bindAddress(args[++i]);
+                else if (args[i].equals("-renders") && (i + 1 < args.length))
+                    maxRenders = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-load") && (i + 2 < args.length)) {
+                    loadClients = Integer.parseInt(args[++i]);
+                    loadRequests = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-cache") && (i + 1 < args.length))
+                    cacheBytes = Long.parseLong(args[++i]) << 20;
+                else if (args[i].equals("-diskCache") && (i + 2 < args.length)) {
+                    cacheDirectory = new File(args[++i]);
+                    diskCacheBytes = Long.parseLong(args[++i]) << 20;
+                } else
+                    throw new IllegalArgumentException(args[i]);
+            }
+            if ((maxRenders < 1) || (loadClients < 0) || (loadRequests < 0) || (cacheBytes < 0) || (diskCacheBytes < 0))
+                throw new IllegalArgumentException();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: java -cp PolyGo.jar polygo.PolyGo --serve [-port N] [-bind ADDRESS] [-renders N]"
+                + " [-cache MB] [-diskCache DIRECTORY MB] [-load CLIENTS REQUESTS]");
+            System.exit(2);
+        }
+        RenderCache cache = ((cacheBytes == 0) && (cacheDirectory == null)) ? null
+            : new RenderCache(cacheBytes, cacheDirectory, diskCacheBytes);
+        // The load test runs against the loopback interface, whatever -bind says.
+        RenderServer renderServer = (loadClients > 0)
+            ? new RenderServer(InetAddress.getLoopbackAddress(), 0, maxRenders, cache)
+            : new RenderServer(address, port, maxRenders, cache);
+        renderServer.start();
+        if (loadClients == 0) {
+            System.out.println("Serving patterns on http://localhost:" + renderServer.getPort() + "/render");
+            return;
+        }
+        new LoadGenerator("http://localhost:" + renderServer.getPort(), loadClients, loadRequests).run();
+        System.out.print(renderServer.statisticsText());
+        renderServer.stop();
+    }
+
+    /* Sends random render requests to a server from several clients at once, and reports the
+    throughput and the latencies. */
+    static class LoadGenerator {
+        // Number of different patterns asked for.
+        static final int DISTINCT_PATTERNS = 100;
+        final String baseUrl;
+        final int clients, requestsPerClient;
+
+        LoadGenerator(String baseUrl, int clients, int requestsPerClient) {
+            this.baseUrl = baseUrl;
+            this.clients = clients;
+            this.requestsPerClient = requestsPerClient;
+        }
+
+        void run() throws InterruptedException {
+            final long[] latencies = new long[clients * requestsPerClient];
+            final AtomicInteger ok = new AtomicInteger(), busy = new AtomicInteger(), errors = new AtomicInteger();
+            final AtomicLong bytes = new AtomicLong();
+            Thread[] threads = new Thread[clients];
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                final int client = c;
+                threads[c] = new Thread(new Runnable() {
+                    @Override public void run() {
+                        Random random = new Random(client);
+                        for (int r = 0; r < requestsPerClient; r++) {
+                            // Some patterns are asked for much more often than others.
+                            int pattern = (int)(DISTINCT_PATTERNS * Math.pow(random.nextDouble(), 2));
+                            Random pick = new Random(pattern);
+                            String query = "width=" + (200 + 100 * pick.nextInt(5)) + "&height=" + (200 + 100 * pick.nextInt(5))
+                                + "&sides=" + (3 + pick.nextInt(10)) + "&displacement=" + (1 + pick.nextInt(20))
+                                + "&fillColorScheme=" + DrawingScheme.ColorScheme.values()[pick.nextInt(4)].name();
+                            long requestStart = System.nanoTime();
+                            try {
+                                HttpURLConnection connection = (HttpURLConnection)new URL(baseUrl + "/render?" + query).openConnection();
+                                int status = connection.getResponseCode();
+                                InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+                                byte[] buffer = new byte[8192];
+                                int n;
+                                long size = 0;
+                                while ((in != null) && ((n = in.read(buffer)) > 0))
+                                    size += n;
+                                if (in != null)
+                                    in.close();
+                                if (status == 200) {
+                                    ok.incrementAndGet();
+                                    bytes.addAndGet(size);
+                                } else if (status == 503) {
+                                    busy.incrementAndGet();
+                                } else {
+                                    errors.incrementAndGet();
+                                }
+                            } catch (IOException e) {
+                                errors.incrementAndGet();
+                            }
+                            latencies[client * requestsPerClient + r] = System.nanoTime() - requestStart;
+                        }
+                    }
+                });
+                threads[c].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Arrays.sort(latencies);
+            System.out.println(String.format("%d clients x %d requests in %.2f s: %d ok, %d busy, %d errors, %.1f requests/s, %.1f MB",
+                clients, requestsPerClient, seconds, ok.get(), busy.get(), errors.get(), latencies.length / seconds, bytes.get() / 1e6));
+            if (latencies.length > 0)
+                System.out.println(String.format("latency: median %.1f ms, 95%% %.1f ms, max %.1f ms",
+                    latencies[latencies.length / 2] / 1e6, latencies[(int)(latencies.length * 0.95)] / 1e6,
+                    latencies[latencies.length - 1] / 1e6));
+        }
+    }
+}
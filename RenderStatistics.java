@@ -0,0 +1,132 @@
+package polygo;
+
+/* RenderStatistics counts the work done for drawing the pattern, so the effect of
+rendering optimizations can be observed. Set the system property polygo.stats=true
+to have the counters printed after every repaint. */
+public class RenderStatistics {
+    // Repaints served from the cached image, and repaints that required rendering.
+    long cacheHits, cacheMisses;
+    // Background renders abandoned because a newer drawing scheme arrived.
+    long rendersCancelled;
+    // Background renders and region maps that failed with an exception.
+    long rendersFailed;
+    // Time spent on the most recent render, in nanoseconds.
+    long lastRenderNanos;
+    // Number of Graphics2D color and stroke changes in the most recent full render.
+    long lastStateChanges;
+    // Number of fill calls in the most recent full render.
+    long lastFillCalls;
+    // Number of times pixels were stroked again by another outline stroke in the most recent
+    // full render. Only counted (at a high cost) if COUNT_OVERDRAW is set.
+    long lastOverdraw;
+    // Time spent on rendering and on encoding the most recently exported image, and the
+    // size of its (uncompressed) image data.
+    long lastExportRenderNanos, lastExportEncodeNanos, lastExportBytes;
+    // Images recolored from a region map instead of rendered, and the time spent on the
+    // most recent one.
+    long recolors, lastRecolorNanos;
+
+    static final boolean PRINT = Boolean.getBoolean("polygo.stats");
+    // Set the system property polygo.stats.overdraw=true to count overdraw.
+    static final boolean COUNT_OVERDRAW = Boolean.getBoolean("polygo.stats.overdraw");
+
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    public synchronized long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public synchronized long getRendersCancelled() {
+        return rendersCancelled;
+    }
+
+    public synchronized long getRendersFailed() {
+        return rendersFailed;
+    }
+
+    public synchronized long getLastRenderNanos() {
+        return lastRenderNanos;
+    }
+
+    public synchronized long getLastStateChanges() {
+        return lastStateChanges;
+    }
+
+    public synchronized long getLastFillCalls() {
+        return lastFillCalls;
+    }
+
+    public synchronized long getLastOverdraw() {
+        return lastOverdraw;
+    }
+
+    synchronized void frameRendered(long stateChanges, long fillCalls, long overdraw) {
+        lastStateChanges = stateChanges;
+        lastFillCalls = fillCalls;
+        lastOverdraw = overdraw;
+    }
+
+    public synchronized long getLastExportRenderNanos() {
+        return lastExportRenderNanos;
+    }
+
+    public synchronized long getLastExportEncodeNanos() {
+        return lastExportEncodeNanos;
+    }
+
+    /* Encoding throughput of the most recently exported image, in MB per second. */
+    public synchronized double getLastExportEncodeMBPerSecond() {
+        return((lastExportEncodeNanos == 0) ? 0 : lastExportBytes / 1e6 / (lastExportEncodeNanos / 1e9));
+    }
+
+    synchronized void imageExported(long renderNanos, long encodeNanos, long bytes) {
+        lastExportRenderNanos = renderNanos;
+        lastExportEncodeNanos = encodeNanos;
+        lastExportBytes = bytes;
+    }
+
+    public synchronized long getRecolors() {
+        return recolors;
+    }
+
+    public synchronized long getLastRecolorNanos() {
+        return lastRecolorNanos;
+    }
+
+    synchronized void imageRecolored(long nanos) {
+        recolors++;
+        lastRecolorNanos = nanos;
+    }
+
+    synchronized void cacheHit() {
+        cacheHits++;
+    }
+
+    synchronized void cacheMiss(long renderNanos) {
+        cacheMisses++;
+        lastRenderNanos = renderNanos;
+    }
+
+    synchronized void renderCancelled() {
+        rendersCancelled++;
+    }
+
+    synchronized void renderFailed() {
+        rendersFailed++;
+    }
+
+    @Override public synchronized String toString() {
+        return("cache hits: " + cacheHits + ", misses: " + cacheMisses + ", cancelled: " + rendersCancelled +
+            ((rendersFailed == 0) ? "" : (", failed: " + rendersFailed)) +
+            ", last render: " + String.format("%.1f", lastRenderNanos / 1e6) + " ms" +
+            ((recolors == 0) ? "" : (", recolors: " + recolors + ", last recolor: " +
+            String.format("%.1f", lastRecolorNanos / 1e6) + " ms")) +
+            ", state changes: " + lastStateChanges + ", fill calls: " + lastFillCalls +
+            (COUNT_OVERDRAW ? (", overdraw: " + lastOverdraw) : "") +
+            ((lastExportBytes == 0) ? "" : (", last export: render " + String.format("%.1f", lastExportRenderNanos / 1e6) +
+            " ms, encode " + String.format("%.1f", lastExportEncodeNanos / 1e6) + " ms (" +
+            String.format("%.1f", getLastExportEncodeMBPerSecond()) + " MB/s)")));
+    }
+}
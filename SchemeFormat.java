@@ -0,0 +1,541 @@
+package polygo;
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/* SchemeFormat reads and writes PolyGo files. A drawing scheme is saved in a compact binary
+format: a header (the magic bytes "PLGO", the format version and the length of the body),
+then the fields of the scheme as primitive values in big-endian order, colors as packed ARGB
+integers, and the angles and the vertices of the base polygon as arrays of doubles:
+    int numSides, rotation, aspectRatioX, aspectRatioY
+    byte displacementType; int displacement; byte direction; byte infinite; int iterations
+    byte lineColorScheme; int lineWidth; int numLineColors; int[numLineColors] lineColors
+    byte fillColorScheme; int numFillColors; int[numFillColors] fillColors
+    int backgroundColor; byte innerFill; int innerFillColor
+    double[numSides] angles; double[2 * numSides] vertices (x, y of each)
+Enums are saved by ordinal, so their constants must keep their order (new ones go last).
+Fields added later go at the end of the body, in a new minor version, so older readers
+(which skip what they do not know) can still read the file; a change that older readers
+cannot skip needs a new major version, which they reject.
+The same fields can be saved as JSON instead, for reading and editing by hand.
+Reading also accepts files saved with Java serialization by earlier versions of PolyGo. */
+public class SchemeFormat {
+    private static final byte[] MAGIC = {'P', 'L', 'G', 'O'};
+    private static final int MAJOR_VERSION = 1;
+    private static final int MINOR_VERSION = 0;
+    // Magic bytes, major and minor version, length of the body.
+    private static final int HEADER_SIZE = MAGIC.length + 2 + 2 + 4;
+    // First bytes of a Java serialization stream.
+    private static final int SERIALIZATION_MAGIC = 0xaced;
+    // Largest file accepted, far larger than any drawing scheme.
+    private static final int MAX_FILE_SIZE = 1 << 20;
+    private static final Charset JSON_CHARSET = Charset.forName("UTF-8");
+
+    /* Read a drawing scheme from a PolyGo file in any of the formats: binary, JSON, or
+    Java serialization. */
+    public static DrawingScheme read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > MAX_FILE_SIZE)
+                throw new IOException("Not a PolyGo file: " + file);
+            ByteBuffer buffer = ByteBuffer.allocate((int)size);
+            while (buffer.hasRemaining() && (channel.read(buffer) >= 0)) {
+            }
+            buffer.flip();
+            return(read(buffer));
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Read a drawing scheme from the contents of a PolyGo file. */
+    public static DrawingScheme read(ByteBuffer buffer) throws IOException {
+        if (startsWith(buffer, MAGIC))
+            return(readBinary(buffer));
+        if ((buffer.remaining() >= 2) && ((buffer.getShort(buffer.position()) & 0xffff) == SERIALIZATION_MAGIC))
+            return(readSerialized(buffer));
+        int p = buffer.position();
+        while ((p < buffer.limit()) && Character.isWhitespace(buffer.get(p)))
+            p++;
+        if ((p < buffer.limit()) && (buffer.get(p) == '{'))
+            return(readJson(JSON_CHARSET.decode(buffer).toString()));
+        throw new IOException("Not a PolyGo file");
+    }
+
+    /* Whether a file (its first bytes) is in the binary format. */
+    public static boolean isBinary(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length);
+            while (buffer.hasRemaining() && (in.getChannel().read(buffer) >= 0)) {
+            }
+            buffer.flip();
+            return(startsWith(buffer, MAGIC));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+        if (buffer.remaining() < prefix.length)
+            return(false);
+        for (int i = 0; i < prefix.length; i++)
+            if (buffer.get(buffer.position() + i) != prefix[i])
+                return(false);
+        return(true);
+    }
+
+    /* Write a drawing scheme to a file in the binary format. */
+    public static void write(DrawingScheme drawingScheme, File file) throws IOException {
+        writeFile(toBinary(drawingScheme), file);
+    }
+
+    /* Write a drawing scheme to a file as JSON. */
+    public static void writeJson(DrawingScheme drawingScheme, File file) throws IOException {
+        writeFile(ByteBuffer.wrap(toJson(drawingScheme).getBytes(JSON_CHARSET)), file);
+    }
+
+    private static void writeFile(ByteBuffer buffer, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } finally {
+            out.close();
+        }
+    }
+
+    /* The binary form of a drawing scheme. */
+    public static ByteBuffer toBinary(DrawingScheme drawingScheme) {
+        int numSides = drawingScheme.numSides;
+        int bodySize = 4 * 4 + (1 + 4 + 1 + 1 + 4) + (1 + 4 + 4 + 4 * drawingScheme.lineColors.size())
+            + (1 + 4 + 4 * drawingScheme.fillColors.size()) + (4 + 1 + 4) + 8 * 3 * numSides;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        buffer.put(MAGIC);
+        buffer.putShort((short)MAJOR_VERSION);
+        buffer.putShort((short)MINOR_VERSION);
+        buffer.putInt(bodySize);
+        buffer.putInt(numSides);
+        buffer.putInt(drawingScheme.rotation);
+        buffer.putInt(drawingScheme.aspectRatioX);
+        buffer.putInt(drawingScheme.aspectRatioY);
+        buffer.put((byte)drawingScheme.displacementType.ordinal());
+        buffer.putInt(drawingScheme.displacement);
+        buffer.put((byte)drawingScheme.direction.ordinal());
+        buffer.put((byte)(drawingScheme.infinite ? 1 : 0));
+        buffer.putInt(drawingScheme.iterations);
+        buffer.put((byte)drawingScheme.lineColorScheme.ordinal());
+        buffer.putInt(drawingScheme.lineWidth);
+        putColors(buffer, drawingScheme.lineColors);
+        buffer.put((byte)drawingScheme.fillColorScheme.ordinal());
+        putColors(buffer, drawingScheme.fillColors);
+        buffer.putInt(drawingScheme.backgroundColor.getRGB());
+        buffer.put((byte)(drawingScheme.innerFill ? 1 : 0));
+        buffer.putInt(drawingScheme.innerFillColor.getRGB());
+        for (int s = 0; s < numSides; s++)
+            buffer.putDouble(drawingScheme.angles[s]);
+        for (int v = 0; v < numSides; v++) {
+            buffer.putDouble(drawingScheme.basePolygon.get(v).x);
+            buffer.putDouble(drawingScheme.basePolygon.get(v).y);
+        }
+        buffer.flip();
+        return(buffer);
+    }
+
+    private static void putColors(ByteBuffer buffer, List<Color> colors) {
+        buffer.putInt(colors.size());
+        for (Color color : colors)
+            buffer.putInt(color.getRGB());
+    }
+
+    private static DrawingScheme readBinary(ByteBuffer buffer) throws IOException {
+        try {
+            buffer.position(buffer.position() + MAGIC.length);
+            int majorVersion = buffer.getShort() & 0xffff;
+            buffer.getShort(); // minor version: newer ones only add fields at the end
+            if (majorVersion != MAJOR_VERSION)
+                throw new IOException("PolyGo file format version " + majorVersion + " is not supported");
+            int bodySize = buffer.getInt();
+            if ((bodySize < 0) || (bodySize > buffer.remaining()))
+                throw new IOException("Truncated PolyGo file");
+            ByteBuffer body = buffer.slice();
+            body.limit(bodySize);
+            DrawingScheme drawingScheme = new DrawingScheme();
+            int numSides = body.getInt();
+            checkNumSides(numSides);
+            drawingScheme.numSides = numSides;
+            drawingScheme.rotation = body.getInt();
+            drawingScheme.aspectRatioX = body.getInt();
+            drawingScheme.aspectRatioY = body.getInt();
+            drawingScheme.displacementType = enumConstant(DrawingScheme.DisplacementType.values(), body.get());
+            drawingScheme.displacement = body.getInt();
+            drawingScheme.direction = enumConstant(DrawingScheme.Direction.values(), body.get());
+            drawingScheme.infinite = (body.get() != 0);
+            drawingScheme.iterations = body.getInt();
+            drawingScheme.lineColorScheme = enumConstant(DrawingScheme.ColorScheme.values(), body.get());
+            drawingScheme.lineWidth = body.getInt();
+            drawingScheme.lineColors = getColors(body);
+            drawingScheme.fillColorScheme = enumConstant(DrawingScheme.ColorScheme.values(), body.get());
+            drawingScheme.fillColors = getColors(body);
+            drawingScheme.backgroundColor = new Color(body.getInt(), true);
+            drawingScheme.innerFill = (body.get() != 0);
+            drawingScheme.innerFillColor = new Color(body.getInt(), true);
+            double[] angles = new double[numSides];
+            body.asDoubleBuffer().get(angles);
+            body.position(body.position() + 8 * numSides);
+            double[] vertices = new double[2 * numSides];
+            body.asDoubleBuffer().get(vertices);
+            drawingScheme.angles = angles;
+            drawingScheme.basePolygon = polygon(vertices);
+            return(checked(drawingScheme));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated PolyGo file");
+        }
+    }
+
+    private static ArrayList<Color> getColors(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if ((count < 0) || (count > buffer.remaining() / 4))
+            throw new IOException("Invalid PolyGo file: " + count + " colors");
+        ArrayList<Color> colors = new ArrayList<Color>(count);
+        for (int c = 0; c < count; c++)
+            colors.add(new Color(buffer.getInt(), true));
+        return(colors);
+    }
+
+    private static <T> T enumConstant(T[] constants, int ordinal) throws IOException {
+        if ((ordinal < 0) || (ordinal >= constants.length))
+            throw new IOException("Invalid PolyGo file: unknown setting " + ordinal);
+        return(constants[ordinal]);
+    }
+
+    private static void checkNumSides(int numSides) throws IOException {
+        if ((numSides < 3) || (numSides > DrawingScheme.Limits.MAX_NUM_SIDES))
+            throw new IOException("Invalid PolyGo file: " + numSides + " sides");
+    }
+
+    private static Geometry.PolygonD polygon(double[] vertices) {
+        Geometry.PolygonD polygon = new Geometry.PolygonD(vertices.length / 2);
+        for (int v = 0; v < vertices.length / 2; v++)
+            polygon.set(v, vertices[2 * v], vertices[2 * v + 1]);
+        return(polygon);
+    }
+
+    /* Check that the scheme can be drawn: that it has the fields it needs, within the limits
+    that the control panel keeps to. */
+    private static DrawingScheme checked(DrawingScheme drawingScheme) throws IOException {
+        if ((drawingScheme.displacementType == null) || (drawingScheme.direction == null)
+                || (drawingScheme.lineColorScheme == null) || (drawingScheme.fillColorScheme == null)
+                || (drawingScheme.lineColors == null) || (drawingScheme.fillColors == null)
+                || drawingScheme.lineColors.contains(null) || drawingScheme.fillColors.contains(null)
+                || (drawingScheme.backgroundColor == null) || (drawingScheme.innerFillColor == null)
+                || (drawingScheme.angles == null) || (drawingScheme.basePolygon == null))
+            throw new IOException("Invalid PolyGo file: missing fields");
+        checkNumSides(drawingScheme.numSides);
+        if ((drawingScheme.angles.length != drawingScheme.numSides)
+                || (drawingScheme.basePolygon.length() != drawingScheme.numSides))
+            throw new IOException("Invalid PolyGo file: base polygon does not have " + drawingScheme.numSides + " sides");
+        for (int v = 0; v < drawingScheme.numSides; v++) {
+            Geometry.PointD vertex = drawingScheme.basePolygon.get(v);
+            if ((vertex == null) || Double.isNaN(vertex.x) || Double.isInfinite(vertex.x)
+                    || Double.isNaN(vertex.y) || Double.isInfinite(vertex.y))
+                throw new IOException("Invalid PolyGo file: base polygon vertex is not a number");
+        }
+        if ((drawingScheme.displacement < DrawingScheme.Limits.MIN_DISPLACEMENT)
+                || (drawingScheme.displacement > DrawingScheme.Limits.maxDisplacement(drawingScheme.displacementType)))
+            throw new IOException("Invalid PolyGo file: displacement " + drawingScheme.displacement + " out of range");
+        if (!usable(drawingScheme.lineColorScheme, drawingScheme.lineColors, drawingScheme.numSides)
+                || !usable(drawingScheme.fillColorScheme, drawingScheme.fillColors, drawingScheme.numSides))
+            throw new IOException("Invalid PolyGo file: too few colors");
+        if ((drawingScheme.lineWidth < 0) || (drawingScheme.iterations < 0))
+            throw new IOException("Invalid PolyGo file: negative line width or depth");
+        return(drawingScheme);
+    }
+
+    /* Whether the colors are enough for the color scheme (e.g., one per side for
+    ONE_SIDE_ONE_COLOR), so that the pattern can be drawn with them. */
+    static boolean usable(DrawingScheme.ColorScheme colorScheme, List<Color> colors, int numSides) {
+        if (colorScheme == DrawingScheme.ColorScheme.NONE)
+            return(true);
+        if (colorScheme == DrawingScheme.ColorScheme.ONE_SIDE_ONE_COLOR)
+            return(colors.size() >= numSides);
+        return(!colors.isEmpty());
+    }
+
+    private static DrawingScheme readSerialized(ByteBuffer buffer) throws IOException {
+        ObjectInputStream in = new SchemeInputStream(new ByteArrayInputStream(buffer.array(),
+            buffer.arrayOffset() + buffer.position(), buffer.remaining()));
+        try {
+            return(checked((DrawingScheme)in.readObject()));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not a PolyGo file");
+        } catch (ClassCastException e) {
+            throw new IOException("Not a PolyGo file");
+        } finally {
+            in.close();
+        }
+    }
+
+    /* An object stream that only reads the classes a drawing scheme is made of, so that a
+    file that only claims to be a PolyGo file (the open dialog reads every file it shows)
+    cannot have any other class deserialized. */
+    private static class SchemeInputStream extends ObjectInputStream {
+        private static final List<String> ALLOWED_CLASSES = Arrays.asList(
+            DrawingScheme.class.getName(),
+            DrawingScheme.ColorScheme.class.getName(),
+            DrawingScheme.DisplacementType.class.getName(),
+            DrawingScheme.Direction.class.getName(),
+            DrawingScheme.PaletteType.class.getName(),
+            Geometry.PolygonD.class.getName(),
+            Geometry.PointD.class.getName(),
+            "[L" + Geometry.PointD.class.getName() + ";",
+            ArrayList.class.getName(),
+            Color.class.getName(),
+            Enum.class.getName(),
+            "[D", "[F");
+
+        SchemeInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override protected Class<?> resolveClass(ObjectStreamClass description) throws IOException,
+                ClassNotFoundException {
+            if (!ALLOWED_CLASSES.contains(description.getName()))
+                throw new InvalidClassException(description.getName(), "Not part of a PolyGo file");
+            return(super.resolveClass(description));
+        }
+
+        @Override protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy", "Not part of a PolyGo file");
+        }
+    }
+
+    /* The JSON form of a drawing scheme: the same fields as the binary format, with the
+    settings by name, colors as "#AARRGGBB", and the vertices of the base polygon as a
+    list of x, y pairs. */
+    public static String toJson(DrawingScheme drawingScheme) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"format\": \"PolyGo\",\n  \"version\": \"").append(MAJOR_VERSION).append('.')
+            .append(MINOR_VERSION).append("\",\n");
+        json.append("  \"numSides\": ").append(drawingScheme.numSides).append(",\n");
+        json.append("  \"rotation\": ").append(drawingScheme.rotation).append(",\n");
+        json.append("  \"aspectRatio\": [").append(drawingScheme.aspectRatioX).append(", ")
+            .append(drawingScheme.aspectRatioY).append("],\n");
+        json.append("  \"displacementType\": \"").append(drawingScheme.displacementType.name()).append("\",\n");
+        json.append("  \"displacement\": ").append(drawingScheme.displacement).append(",\n");
+        json.append("  \"direction\": \"").append(drawingScheme.direction.name()).append("\",\n");
+        json.append("  \"infinite\": ").append(drawingScheme.infinite).append(",\n");
+        json.append("  \"iterations\": ").append(drawingScheme.iterations).append(",\n");
+        json.append("  \"lineColorScheme\": \"").append(drawingScheme.lineColorScheme.name()).append("\",\n");
+        json.append("  \"lineWidth\": ").append(drawingScheme.lineWidth).append(",\n");
+        json.append("  \"lineColors\": ");
+        appendColors(json, drawingScheme.lineColors);
+        json.append(",\n  \"fillColorScheme\": \"").append(drawingScheme.fillColorScheme.name()).append("\",\n");
+        json.append("  \"fillColors\": ");
+        appendColors(json, drawingScheme.fillColors);
+        json.append(",\n  \"backgroundColor\": ");
+        appendColor(json, drawingScheme.backgroundColor);
+        json.append(",\n  \"innerFill\": ").append(drawingScheme.innerFill).append(",\n");
+        json.append("  \"innerFillColor\": ");
+        appendColor(json, drawingScheme.innerFillColor);
+        json.append(",\n  \"angles\": [");
+        for (int s = 0; s < drawingScheme.numSides; s++)
+            json.append((s == 0) ? "" : ", ").append(drawingScheme.angles[s]);
+        json.append("],\n  \"basePolygon\": [");
+        for (int v = 0; v < drawingScheme.numSides; v++)
+            json.append((v == 0) ? "" : ", ").append(drawingScheme.basePolygon.get(v).x).append(", ")
+                .append(drawingScheme.basePolygon.get(v).y);
+        json.append("]\n}\n");
+        return(json.toString());
+    }
+
+    private static void appendColors(StringBuilder json, List<Color> colors) {
+        json.append('[');
+        for (int c = 0; c < colors.size(); c++) {
+            if (c > 0)
+                json.append(", ");
+            appendColor(json, colors.get(c));
+        }
+        json.append(']');
+    }
+
+    private static void appendColor(StringBuilder json, Color color) {
+        String hex = Integer.toHexString(color.getRGB());
+        json.append("\"#");
+        for (int i = hex.length(); i < 8; i++)
+            json.append('0');
+        json.append(hex).append('"');
+    }
+
+    /* Read a drawing scheme from its JSON form. */
+    public static DrawingScheme readJson(String json) throws IOException {
+        try {
+            Map<String, String> members = JsonReader.parseObject(json);
+            if (!"PolyGo".equals(members.get("format")))
+                throw new IOException("Not a PolyGo file");
+            String version = member(members, "version");
+            if (!version.startsWith(MAJOR_VERSION + "."))
+                throw new IOException("PolyGo file format version " + version + " is not supported");
+            DrawingScheme drawingScheme = new DrawingScheme();
+            int numSides = Integer.parseInt(member(members, "numSides"));
+            checkNumSides(numSides);
+            drawingScheme.numSides = numSides;
+            drawingScheme.rotation = Integer.parseInt(member(members, "rotation"));
+            double[] aspectRatio = doubles(member(members, "aspectRatio"), 2);
+            drawingScheme.aspectRatioX = (int)aspectRatio[0];
+            drawingScheme.aspectRatioY = (int)aspectRatio[1];
+            drawingScheme.displacementType = DrawingScheme.DisplacementType.valueOf(member(members, "displacementType"));
+            drawingScheme.displacement = Integer.parseInt(member(members, "displacement"));
+            drawingScheme.direction = DrawingScheme.Direction.valueOf(member(members, "direction"));
+            drawingScheme.infinite = Boolean.parseBoolean(member(members, "infinite"));
+            drawingScheme.iterations = Integer.parseInt(member(members, "iterations"));
+            drawingScheme.lineColorScheme = DrawingScheme.ColorScheme.valueOf(member(members, "lineColorScheme"));
+            drawingScheme.lineWidth = Integer.parseInt(member(members, "lineWidth"));
+            drawingScheme.lineColors = colors(member(members, "lineColors"));
+            drawingScheme.fillColorScheme = DrawingScheme.ColorScheme.valueOf(member(members, "fillColorScheme"));
+            drawingScheme.fillColors = colors(member(members, "fillColors"));
+            drawingScheme.backgroundColor = color(member(members, "backgroundColor"));
+            drawingScheme.innerFill = Boolean.parseBoolean(member(members, "innerFill"));
+            drawingScheme.innerFillColor = color(member(members, "innerFillColor"));
+            drawingScheme.angles = doubles(member(members, "angles"), numSides);
+            drawingScheme.basePolygon = polygon(doubles(member(members, "basePolygon"), 2 * numSides));
+            return(checked(drawingScheme));
+        } catch (IllegalArgumentException e) { // including badly formed numbers and unknown settings
+            throw new IOException("Invalid PolyGo file: " + e.getMessage());
+        }
+    }
+
+    private static String member(Map<String, String> members, String name) throws IOException {
+        String value = members.get(name);
+        if (value == null)
+            throw new IOException("Invalid PolyGo file: no " + name);
+        return(value);
+    }
+
+    private static double[] doubles(String list, int count) throws IOException {
+        String[] items = list.isEmpty() ? new String[0] : list.split(",");
+        if (items.length != count)
+            throw new IOException("Invalid PolyGo file: " + items.length + " numbers instead of " + count);
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++)
+            values[i] = Double.parseDouble(items[i].trim());
+        return(values);
+    }
+
+    private static ArrayList<Color> colors(String list) {
+        ArrayList<Color> colors = new ArrayList<Color>();
+        if (!list.isEmpty())
+            for (String color : list.split(","))
+                colors.add(color(color));
+        return(colors);
+    }
+
+    private static Color color(String value) {
+        String hex = value.trim();
+        if (hex.startsWith("#"))
+            hex = hex.substring(1);
+        if (hex.length() == 6)
+            hex = "ff" + hex;
+        if (hex.length() != 8)
+            throw new IllegalArgumentException("bad color " + value);
+        return(new Color((int)Long.parseLong(hex, 16), true));
+    }
+
+    /* Convert PolyGo files saved with Java serialization to the binary format, in place.
+    Run with:
+        java -cp PolyGo.jar polygo.PolyGo --convert [-json] [-nobackup] files or directories...
+    Directories are searched (with their subdirectories) for PolyGo files. The original of
+    each converted file is kept with .bak appended, unless -nobackup is given. With -json, a
+    JSON copy of every file is written next to it (with .json appended). */
+    public static void main(String[] args) {
+        boolean json = false, backup = true;
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            if (arg.equals("-json")) {
+                json = true;
+            } else if (arg.equals("-nobackup")) {
+                backup = false;
+            } else if (arg.startsWith("-")) {
+                System.err.println("Unknown option " + arg);
+                files.clear();
+                break;
+            } else {
+                addFiles(new File(arg), files);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java -cp PolyGo.jar polygo.PolyGo --convert [-json] [-nobackup] files or directories...");
+            System.exit(2);
+        }
+        int converted = 0, current = 0, failed = 0;
+        long oldBytes = 0, newBytes = 0;
+        for (File file : files) {
+            try {
+                DrawingScheme drawingScheme = read(file);
+                if (json)
+                    writeJson(drawingScheme, new File(file.getPath() + ".json"));
+                if (isBinary(file)) {
+                    current++;
+                    continue;
+                }
+                // Write the new file beside the old one, then swap them.
+                File temporary = new File(file.getPath() + ".tmp");
+                write(drawingScheme, temporary);
+                long oldSize = file.length();
+                if (backup) {
+                    File backupFile = new File(file.getPath() + ".bak");
+                    backupFile.delete();
+                    if (!file.renameTo(backupFile))
+                        throw new IOException("Cannot rename to " + backupFile);
+                } else {
+                    file.delete();
+                }
+                if (!temporary.renameTo(file))
+                    throw new IOException("Cannot rename " + temporary);
+                converted++;
+                oldBytes += oldSize;
+                newBytes += file.length();
+                System.out.println(file + ": " + oldSize + " -> " + file.length() + " bytes");
+            } catch (IOException e) {
+                failed++;
+                System.err.println(file + ": " + e.getMessage());
+            }
+        }
+        System.out.println(converted + " converted (" + oldBytes + " -> " + newBytes + " bytes), " + current
+            + " already in the current format, " + failed + " failed");
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    private static void addFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null)
+                return;
+            Arrays.sort(children);
+            for (File child : children)
+                if (child.isDirectory() || child.getName().endsWith("." + FileHandling.POLYGO_FILE_EXTENSION))
+                    addFiles(child, files);
+        } else {
+            files.add(file);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package polygo;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import polygo.Geometry.*;
+
+/* SchemeSnapshot is a read-only copy of what decides how a drawing scheme is drawn, at one
+version (see DrawingScheme.snapshot), for rendering on other threads and for keeping in
+caches while the scheme goes on being edited. Renderers take a snapshot rather than the
+drawing scheme itself. Its fields are final, its color lists cannot be modified and its
+base polygon is only read through it, so a snapshot never changes and can be read on any
+thread without locks.
+Taking a snapshot is cheap. The colors and base polygon are only copied when they changed
+since the previous snapshot of the same scheme, and shared with it otherwise (the drawing
+scheme never changes them in place, but replaces them). The color tables and the
+fingerprint are worked out once per snapshot, when first needed. */
+public final class SchemeSnapshot {
+    final long version;
+    final long geometryVersion;
+    final int numSides;
+    final DrawingScheme.DisplacementType displacementType;
+    final int displacement;
+    final DrawingScheme.Direction direction;
+    final boolean infinite;
+    final int iterations;
+    final DrawingScheme.ColorScheme lineColorScheme;
+    final List<Color> lineColors;
+    final int lineWidth;
+    final DrawingScheme.ColorScheme fillColorScheme;
+    final List<Color> fillColors;
+    final Color backgroundColor;
+    final boolean innerFill;
+    final Color innerFillColor;
+    private final PolygonD basePolygon;
+    // The objects of the drawing scheme the shared ones were copied from, for telling
+    // whether the next snapshot can share them too.
+    private final List<Color> lineColorsSource, fillColorsSource;
+    private final PolygonD basePolygonSource;
+    // Worked out when first needed. Render threads may do that at the same time; the
+    // results are immutable and equal, so whichever is kept is right.
+    private DrawingScheme.ColorTable lineColorTable, fillColorTable;
+    private String fingerprint;
+
+    /* A snapshot of the drawing scheme as it is now, sharing what did not change with the
+    previous snapshot of the same scheme (if any). */
+    SchemeSnapshot(DrawingScheme drawingScheme, SchemeSnapshot previous) {
+        version = drawingScheme.version;
+        geometryVersion = drawingScheme.geometryVersion;
+        numSides = drawingScheme.numSides;
+        displacementType = drawingScheme.displacementType;
+        displacement = drawingScheme.displacement;
+        direction = drawingScheme.direction;
+        infinite = drawingScheme.infinite;
+        iterations = drawingScheme.iterations;
+        lineColorScheme = drawingScheme.lineColorScheme;
+        lineColors = ((previous != null) && (previous.lineColorsSource == drawingScheme.lineColors)) ? previous.lineColors
+            : Collections.unmodifiableList(new ArrayList<Color>(drawingScheme.lineColors));
+        lineWidth = drawingScheme.lineWidth;
+        fillColorScheme = drawingScheme.fillColorScheme;
+        fillColors = ((previous != null) && (previous.fillColorsSource == drawingScheme.fillColors)) ? previous.fillColors
+            : Collections.unmodifiableList(new ArrayList<Color>(drawingScheme.fillColors));
+        backgroundColor = drawingScheme.backgroundColor;
+        innerFill = drawingScheme.innerFill;
+        innerFillColor = drawingScheme.innerFillColor;
+        basePolygon = ((previous != null) && (previous.basePolygonSource == drawingScheme.basePolygon))
+            ? previous.basePolygon : copy(drawingScheme.basePolygon);
+        lineColorsSource = drawingScheme.lineColors;
+        fillColorsSource = drawingScheme.fillColors;
+        basePolygonSource = drawingScheme.basePolygon;
+    }
+
+    private static PolygonD copy(PolygonD polygon) {
+        PolygonD copy = new PolygonD(polygon.length());
+        for (int v = 0; v < polygon.length(); v++)
+            copy.set(v, polygon.get(v));
+        return(copy);
+    }
+
+    /* Version of the drawing scheme the snapshot was taken at (see DrawingScheme.getVersion). */
+    public long getVersion() {
+        return version;
+    }
+
+    /* Geometry version of the drawing scheme (see DrawingScheme.getGeometryVersion). */
+    public long getGeometryVersion() {
+        return geometryVersion;
+    }
+
+    /* Scale the base polygon to a canvas, as the first level of a chain (see
+    Geometry.scalePolygon). */
+    void scaleBasePolygon(Dimension canvas, int margin, NestedPolygonChain chain) {
+        Geometry.scalePolygon(basePolygon, canvas, margin, chain);
+    }
+
+    /* The line colors compiled for rendering (empty if outlines are not drawn). */
+    DrawingScheme.ColorTable getLineColorTable() {
+        DrawingScheme.ColorTable table = lineColorTable;
+        if (table == null) {
+            table = new DrawingScheme.ColorTable(lineColorScheme, lineColors, null, numSides);
+            lineColorTable = table;
+        }
+        return(table);
+    }
+
+    /* The fill colors compiled for rendering (the background if the fill color scheme is NONE). */
+    DrawingScheme.ColorTable getFillColorTable() {
+        DrawingScheme.ColorTable table = fillColorTable;
+        if (table == null) {
+            table = new DrawingScheme.ColorTable(fillColorScheme, fillColors, backgroundColor, numSides);
+            fillColorTable = table;
+        }
+        return(table);
+    }
+
+    /* Fingerprint of the pattern: a SHA-256 digest (in hex) of what decides how it is drawn,
+    in a canonical form, so that schemes which look the same have the same fingerprint even if
+    they were set up differently. The polygon counts only by its vertices (not the rotation and
+    angles that produced them, nor its position), the iterations only in finite mode, the line
+    colors and width only if there are lines, the inner fill color only with inner fill, and
+    the palettes only by the colors actually drawn and the order in which they are drawn
+    (so a palette repeating itself, or one color per side where all sides match, counts as
+    the shorter palette). Unlike the version, the fingerprint is the same across runs. */
+    public String fingerprint() {
+        String result = fingerprint;
+        if (result == null) {
+            result = computeFingerprint();
+            fingerprint = result;
+        }
+        return(result);
+    }
+
+    private String computeFingerprint() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FINGERPRINT_FORMAT);
+            out.writeInt(numSides);
+            // The renderer scales the polygon to the image from its top left corner.
+            double minX = basePolygon.getMinX(), minY = basePolygon.getMinY();
+            for (int v = 0; v < numSides; v++) {
+                out.writeDouble(basePolygon.get(v).x - minX);
+                out.writeDouble(basePolygon.get(v).y - minY);
+            }
+            out.writeInt(displacementType.ordinal());
+            out.writeInt(displacement);
+            out.writeInt(direction.ordinal());
+            out.writeBoolean(infinite);
+            if (!infinite)
+                out.writeInt(iterations);
+            List<Color> usedFillColors = writePalette(out, fillColorScheme, fillColors);
+            if (lineColorScheme == DrawingScheme.ColorScheme.NONE) {
+                out.writeInt(-1);
+            } else {
+                List<Color> usedLineColors = writePalette(out, lineColorScheme, lineColors);
+                out.writeInt(lineWidth);
+                // Overlapping lines are drawn in the order of the palette.
+                writeDrawingOrder(out, lineColors, usedLineColors, new ArrayList<Color>());
+            }
+            out.writeInt(backgroundColor.getRGB());
+            out.writeBoolean(innerFill);
+            if (innerFill)
+                out.writeInt(innerFillColor.getRGB());
+            // Colors that are not in the fill palette are drawn after the ones that are: the
+            // background between the polygons when there is no fill, then the innermost polygon.
+            ArrayList<Color> extraFillColors = new ArrayList<Color>();
+            if (fillColorScheme == DrawingScheme.ColorScheme.NONE)
+                extraFillColors.add(backgroundColor);
+            extraFillColors.add(innerFill ? innerFillColor : backgroundColor);
+            writeDrawingOrder(out, fillColors, usedFillColors, extraFillColors);
+            out.close();
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return(hex.toString());
+        } catch (IOException e) { // not thrown by a byte array stream
+            throw new IllegalStateException(e);
+        } catch (NoSuchAlgorithmException e) { // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Changes whenever the fingerprint is computed differently, so old fingerprints (e.g.,
+    // of images cached on disk) are not mistaken for new ones.
+    private static final int FINGERPRINT_FORMAT = 1;
+
+    /* Write a palette as the colors it gives each side of each polygon, and return the colors
+    drawn. One color, and one color per side, are written as the equivalent custom palette
+    (which repeats over the sides of successive polygons), and a palette made of a shorter
+    one repeated as that shorter palette. */
+    private List<Color> writePalette(DataOutputStream out, DrawingScheme.ColorScheme colorScheme,
+            List<Color> colors) throws IOException {
+        List<Color> used;
+        switch (colorScheme) {
+            case NONE:
+                out.writeInt(-1);
+                return(new ArrayList<Color>());
+            case ONE_COLOR:
+                used = colors.subList(0, 1);
+                colorScheme = DrawingScheme.ColorScheme.CUSTOM;
+                break;
+            case ONE_SIDE_ONE_COLOR:
+                used = colors.subList(0, Math.min(numSides, colors.size()));
+                colorScheme = DrawingScheme.ColorScheme.CUSTOM;
+                break;
+            default:
+                used = colors;
+                break;
+        }
+        // Only the shortest repeating part counts.
+        int period = 1;
+        while (period < used.size()) {
+            if (used.size() % period == 0) {
+                int c = period;
+                while ((c < used.size()) && used.get(c).equals(used.get(c % period)))
+                    c++;
+                if (c == used.size())
+                    break;
+            }
+            period++;
+        }
+        used = used.subList(0, period);
+        if (period == 1)
+            colorScheme = DrawingScheme.ColorScheme.CUSTOM;
+        out.writeInt(colorScheme.ordinal());
+        out.writeInt(used.size());
+        for (Color color : used)
+            out.writeInt(color.getRGB());
+        return(used);
+    }
+
+    /* Write the order in which the colors drawn are painted: the colors of the palette first,
+    in palette order (including those that are only in the palette as unused colors), then
+    the extra colors. */
+    private static void writeDrawingOrder(DataOutputStream out, List<Color> palette,
+            List<Color> used, List<Color> extra) throws IOException {
+        LinkedHashSet<Color> drawn = new LinkedHashSet<Color>(used);
+        drawn.addAll(extra);
+        LinkedHashSet<Color> order = new LinkedHashSet<Color>();
+        for (Color color : palette)
+            if (drawn.contains(color))
+                order.add(color);
+        order.addAll(drawn);
+        out.writeInt(order.size());
+        for (Color color : order)
+            out.writeInt(color.getRGB());
+    }
+}
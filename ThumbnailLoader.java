@@ -0,0 +1,187 @@
+package polygo;
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+
+/* ThumbnailLoader renders thumbnails of PolyGo files in the background, for showing them in
+a file chooser. getIcon never waits: it returns the thumbnail if it is ready, and otherwise
+queues it and returns null, and the component that asked is repainted once it is ready.
+Since a list only asks for the icons of the entries in view, whenever it paints them, the
+thumbnails asked for most recently are rendered first, and those that have not been asked
+for again since many others were (the entries scrolled out of view) are dropped, even in
+the middle of rendering. A few threads do the work, so that the rest of the application
+(and the chooser) stays responsive. Rendered thumbnails are kept in memory, and in a
+RenderCache, which can keep them on disk (by the fingerprint of the scheme, so copies and
+equivalent schemes share them). */
+class ThumbnailLoader {
+    private static class Settings {
+        // Thumbnails kept in memory.
+        static final int MAX_ICONS = 512;
+        // A request is dropped once this many newer ones have been made (many screenfuls).
+        static final int STALE_REQUESTS = 300;
+        static final int MAX_THREADS = 2;
+    }
+
+    private final RenderCache cache;
+    private final ThreadPoolExecutor executor;
+    // Counts the requests, to tell the recent ones from the stale ones.
+    private final AtomicLong clock = new AtomicLong();
+    // Thumbnails by file, modification time and size. Only used on the event dispatch thread.
+    private final LinkedHashMap<String, Icon> icons = new LinkedHashMap<String, Icon>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Icon> eldest) {
+            return(size() > Settings.MAX_ICONS);
+        }
+    };
+    // Thumbnails being rendered or waiting their turn, by the same key.
+    private final Map<String, Task> pending = new HashMap<String, Task>();
+    // Files that cannot be read, by the same key.
+    private final Map<String, Boolean> failed = new HashMap<String, Boolean>();
+
+    ThumbnailLoader(RenderCache cache) {
+        this.cache = cache;
+        int threads = Math.max(1, Math.min(Settings.MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PolyGo thumbnail " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }});
+    }
+
+    /* The thumbnail of a file at the given size, or null if it is not ready yet (or cannot
+    be made), in which case the component is repainted once it is ready. Call on the event
+    dispatch thread. */
+    Icon getIcon(File file, int size, Component component) {
+        String key = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length() + "|" + size;
+        Icon icon = icons.get(key);
+        if ((icon != null) || failed.containsKey(key))
+            return(icon);
+        Task task = pending.get(key);
+        if (task == null) {
+            if (executor.getQueue().size() > Settings.STALE_REQUESTS)
+                purgeStale();
+            task = new Task(key, file, size, component);
+            pending.put(key, task);
+            task.requested = clock.incrementAndGet();
+            executor.execute(task);
+        } else {
+            task.component = component;
+            // The queue only orders a task when it is added, so move it up by adding it again
+            // (unless it is already running).
+            boolean queued = executor.getQueue().remove(task);
+            task.requested = clock.incrementAndGet();
+            if (queued)
+                executor.execute(task);
+        }
+        return(null);
+    }
+
+    /* Take the stale tasks out of the queue, so that scrolling through a large directory does
+    not leave thousands of them behind. */
+    private void purgeStale() {
+        for (Iterator<Runnable> i = executor.getQueue().iterator(); i.hasNext(); ) {
+            Task task = (Task)i.next();
+            if (task.isCancelled()) {
+                i.remove();
+                pending.remove(task.key);
+            }
+        }
+    }
+
+    /* Stop rendering; the thumbnails not ready yet are dropped. */
+    void dispose() {
+        executor.shutdownNow();
+    }
+
+    /* Renders a thumbnail. The most recently requested tasks come first. */
+    private class Task implements Runnable, Comparable<Task>, RenderMonitor {
+        final String key;
+        final File file;
+        final int size;
+        volatile Component component;
+        volatile long requested;
+
+        Task(String key, File file, int size, Component component) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.component = component;
+        }
+
+        @Override public int compareTo(Task other) {
+            return((requested > other.requested) ? -1 : ((requested < other.requested) ? 1 : 0));
+        }
+
+        @Override public boolean isCancelled() {
+            return((requested < clock.get() - Settings.STALE_REQUESTS) || executor.isShutdown());
+        }
+
+        @Override public void run() {
+            BufferedImage image = null;
+            boolean readable = true;
+            if (!isCancelled()) {
+                try {
+                    image = thumbnail();
+                } catch (IOException e) {
+                    readable = false;
+                } catch (RuntimeException e) { // e.g., a scheme that cannot be drawn
+                    readable = false;
+                }
+            }
+            final Icon icon = (image == null) ? null : new ImageIcon(image);
+            final boolean unreadable = !readable;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override public void run() {
+                    pending.remove(key);
+                    if (icon != null)
+                        icons.put(key, icon);
+                    else if (unreadable)
+                        failed.put(key, Boolean.TRUE);
+                    // Dropped thumbnails are asked for again if their entries are still in view.
+                    if ((component != null) && !unreadable)
+                        component.repaint();
+                }});
+        }
+
+        /* The thumbnail from the cache, or rendered (null if cancelled). */
+        private BufferedImage thumbnail() throws IOException {
+            SchemeSnapshot drawingScheme = SchemeFormat.read(file).snapshot();
+            String cacheKey = RenderCache.key(drawingScheme, size, size, "png");
+            byte[] png = (cache == null) ? null : cache.get(cacheKey);
+            if (png != null) {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+                if (image != null)
+                    return(image);
+            }
+            BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            if (!new PatternRenderer().render(drawingScheme, image, this))
+                return(null);
+            if (cache != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", out);
+                cache.put(cacheKey, out.toByteArray());
+            }
+            return(image);
+        }
+    }
+}
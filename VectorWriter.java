@@ -0,0 +1,371 @@
+package polygo;
+import java.awt.Color;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/* VectorWriter writes a pattern as a vector image straight to a stream, in one pass: the
+background, then the shapes of every color, first the fills and then the outlines, as
+collected by PatternRenderer.writeVector. The text is written as it is generated, through
+a small buffer, without building a document in memory. The subclasses write SVG and PDF. */
+public abstract class VectorWriter {
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    // Text is written to the stream whenever this many characters have been buffered.
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final CountingOutputStream out;
+    // Where the text goes: the stream itself, or a compressor writing to it.
+    private OutputStream target;
+    private Deflater deflater;
+    private final StringBuilder text = new StringBuilder();
+
+    protected VectorWriter(OutputStream out) {
+        this.out = new CountingOutputStream(out);
+        target = this.out;
+    }
+
+    /* Start an image of the given size (in pixels), with the given background color. */
+    abstract void begin(int width, int height, Color background) throws IOException;
+
+    /* Fill the shapes of one color (with the non-zero winding rule). */
+    abstract void fill(Color color, List<Path2D.Double> paths) throws IOException;
+
+    /* Stroke the lines of one color, with round caps and joins. */
+    abstract void stroke(Color color, List<Path2D.Double> paths, double lineWidth) throws IOException;
+
+    /* Complete the image. The stream is flushed, but not closed. */
+    abstract void finish() throws IOException;
+
+    /* Bytes written to the stream so far (not counting the buffered text). */
+    public long getBytesWritten() {
+        return(out.count);
+    }
+
+    protected StringBuilder text() {
+        return(text);
+    }
+
+    /* Write the buffered text if there is enough of it. */
+    protected void flushIfFull() throws IOException {
+        if (text.length() >= BUFFER_SIZE)
+            flushText();
+    }
+
+    protected void flushText() throws IOException {
+        if (text.length() > 0) {
+            target.write(text.toString().getBytes(CHARSET));
+            text.setLength(0);
+        }
+    }
+
+    /* Compress the text written from now on, until endCompression. */
+    protected void beginCompression() throws IOException {
+        flushText();
+        // Path text is so repetitive that the default level takes several times as long as
+        // the fastest one, for files only about 15% smaller.
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        target = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+    }
+
+    protected void endCompression() throws IOException {
+        flushText();
+        ((DeflaterOutputStream)target).finish();
+        deflater.end();
+        target = out;
+    }
+
+    protected void flushStream() throws IOException {
+        flushText();
+        out.flush();
+    }
+
+    /* Append a number, rounded to hundredths, without trailing zeros. */
+    protected static void appendNumber(StringBuilder text, double value) {
+        long hundredths = Math.round(value * 100);
+        if (hundredths < 0) {
+            text.append('-');
+            hundredths = -hundredths;
+        }
+        text.append(hundredths / 100);
+        int fraction = (int)(hundredths % 100);
+        if (fraction != 0) {
+            text.append('.');
+            if (fraction < 10)
+                text.append('0').append(fraction);
+            else if (fraction % 10 == 0)
+                text.append(fraction / 10);
+            else
+                text.append(fraction);
+        }
+    }
+
+    /* Counts the bytes written through it. */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /* Writes Scalable Vector Graphics: a path element for the shapes of each color. */
+    public static class Svg extends VectorWriter {
+        private boolean strokes;
+
+        // Size of a pixel in points, or 0 to leave the size of the image in pixels.
+        private final double pointsPerPixel;
+
+        public Svg(OutputStream out) {
+            this(out, 0);
+        }
+
+        /* An SVG writer whose images are meant to be printed at the given resolution, in
+        dots per inch (their size is given in points). */
+        public Svg(OutputStream out, int dotsPerInch) {
+            super(out);
+            pointsPerPixel = (dotsPerInch > 0) ? 72.0 / dotsPerInch : 0;
+        }
+
+        @Override void begin(int width, int height, Color background) throws IOException {
+            StringBuilder text = text();
+            text.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            text.append("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\" width=\"");
+            if (pointsPerPixel > 0) {
+                appendNumber(text, width * pointsPerPixel);
+                text.append("pt\" height=\"");
+                appendNumber(text, height * pointsPerPixel);
+                text.append("pt");
+            } else {
+                text.append(width).append("\" height=\"").append(height);
+            }
+            text.append("\" viewBox=\"0 0 ").append(width).append(' ').append(height).append("\">\n");
+            text.append("<rect width=\"").append(width).append("\" height=\"").append(height).append("\" fill=\"");
+            appendColor(text, background);
+            text.append("\"/>\n");
+        }
+
+        @Override void fill(Color color, List<Path2D.Double> paths) throws IOException {
+            StringBuilder text = text();
+            text.append("<path fill=\"");
+            appendColor(text, color);
+            text.append("\" d=\"");
+            appendPaths(paths);
+            text.append("\"/>\n");
+        }
+
+        @Override void stroke(Color color, List<Path2D.Double> paths, double lineWidth) throws IOException {
+            StringBuilder text = text();
+            // All the outlines share one group with the stroke attributes.
+            if (!strokes) {
+                text.append("<g fill=\"none\" stroke-width=\"");
+                appendNumber(text, lineWidth);
+                text.append("\" stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+                strokes = true;
+            }
+            text.append("<path stroke=\"");
+            appendColor(text, color);
+            text.append("\" d=\"");
+            appendPaths(paths);
+            text.append("\"/>\n");
+        }
+
+        @Override void finish() throws IOException {
+            if (strokes)
+                text().append("</g>\n");
+            text().append("</svg>\n");
+            flushStream();
+        }
+
+        private static void appendColor(StringBuilder text, Color color) {
+            String hex = Integer.toHexString(color.getRGB() & 0xffffff);
+            text.append('#');
+            for (int i = hex.length(); i < 6; i++)
+                text.append('0');
+            text.append(hex);
+        }
+
+        /* Append path data: a moveto followed by its points (implicit linetos), and a closepath
+        after the closed shapes. */
+        private void appendPaths(List<Path2D.Double> paths) throws IOException {
+            StringBuilder text = text();
+            double[] coords = new double[6];
+            for (Path2D.Double path : paths) {
+                for (PathIterator i = path.getPathIterator(null); !i.isDone(); i.next()) {
+                    switch (i.currentSegment(coords)) {
+                        case PathIterator.SEG_MOVETO:
+                            text.append('M');
+                            appendNumber(text, coords[0]);
+                            text.append(' ');
+                            appendNumber(text, coords[1]);
+                            break;
+                        case PathIterator.SEG_LINETO:
+                            text.append(' ');
+                            appendNumber(text, coords[0]);
+                            text.append(' ');
+                            appendNumber(text, coords[1]);
+                            break;
+                        case PathIterator.SEG_CLOSE:
+                            text.append('Z');
+                            break;
+                        default:
+                            break;
+                    }
+                    flushIfFull();
+                }
+            }
+        }
+    }
+
+    /* Writes a single page Portable Document Format file, one pixel to a point. The page
+    content is compressed, and its length is written after it, so it can be streamed. */
+    public static class Pdf extends VectorWriter {
+        // Offsets of the objects, for the cross-reference table.
+        private final List<Long> offsets = new ArrayList<Long>();
+        private long contentStart;
+        private double lineWidth = -1;
+
+        // Size of a pixel in points.
+        private final double pointsPerPixel;
+
+        public Pdf(OutputStream out) {
+            this(out, 0);
+        }
+
+        /* A PDF writer whose pages are sized for printing their images at the given resolution,
+        in dots per inch (one point per pixel if 0). */
+        public Pdf(OutputStream out, int dotsPerInch) {
+            super(out);
+            pointsPerPixel = (dotsPerInch > 0) ? 72.0 / dotsPerInch : 1;
+        }
+
+        @Override void begin(int width, int height, Color background) throws IOException {
+            StringBuilder text = text();
+            text.append("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+            beginObject();
+            text.append("<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+            beginObject();
+            text.append("<< /Type /Pages /Kids [3 0 R] /Count 1 >>\nendobj\n");
+            beginObject();
+            text.append("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 ");
+            appendNumber(text, width * pointsPerPixel);
+            text.append(' ');
+            appendNumber(text, height * pointsPerPixel);
+            text.append("] /Resources << >> /Contents 4 0 R >>\nendobj\n");
+            beginObject();
+            text.append("<< /Length 5 0 R /Filter /FlateDecode >>\nstream\n");
+            flushText();
+            contentStart = getBytesWritten();
+            beginCompression();
+            // Flip the y axis, which points up in PDF, scale pixels to points, and paint the background.
+            if (pointsPerPixel == 1) {
+                text.append("1 0 0 -1 0 ").append(height).append(" cm\n");
+            } else {
+                text.append(pointsPerPixel).append(" 0 0 ").append(-pointsPerPixel).append(" 0 ");
+                appendNumber(text, height * pointsPerPixel);
+                text.append(" cm\n");
+            }
+            appendColor(text, background, "rg");
+            text.append("0 0 ").append(width).append(' ').append(height).append(" re f\n");
+            text.append("1 J 1 j\n");
+        }
+
+        @Override void fill(Color color, List<Path2D.Double> paths) throws IOException {
+            appendColor(text(), color, "rg");
+            appendPaths(paths, "f");
+        }
+
+        @Override void stroke(Color color, List<Path2D.Double> paths, double lineWidth) throws IOException {
+            StringBuilder text = text();
+            if (lineWidth != this.lineWidth) {
+                appendNumber(text, lineWidth);
+                text.append(" w\n");
+                this.lineWidth = lineWidth;
+            }
+            appendColor(text, color, "RG");
+            appendPaths(paths, "S");
+        }
+
+        @Override void finish() throws IOException {
+            endCompression();
+            long length = getBytesWritten() - contentStart;
+            StringBuilder text = text();
+            text.append("\nendstream\nendobj\n");
+            beginObject();
+            text.append(length).append("\nendobj\n");
+            flushText();
+            long xref = getBytesWritten();
+            text.append("xref\n0 ").append(offsets.size() + 1).append('\n');
+            text.append("0000000000 65535 f \n");
+            String offset;
+            for (long objectOffset : offsets) {
+                offset = Long.toString(objectOffset);
+                for (int i = offset.length(); i < 10; i++)
+                    text.append('0');
+                text.append(offset).append(" 00000 n \n");
+            }
+            text.append("trailer\n<< /Size ").append(offsets.size() + 1).append(" /Root 1 0 R >>\n");
+            text.append("startxref\n").append(xref).append("\n%%EOF\n");
+            flushStream();
+        }
+
+        private void beginObject() throws IOException {
+            flushText();
+            offsets.add(getBytesWritten());
+            text().append(offsets.size()).append(" 0 obj\n");
+        }
+
+        private static void appendColor(StringBuilder text, Color color, String operator) {
+            appendNumber(text, color.getRed() / 255.0);
+            text.append(' ');
+            appendNumber(text, color.getGreen() / 255.0);
+            text.append(' ');
+            appendNumber(text, color.getBlue() / 255.0);
+            text.append(' ').append(operator).append('\n');
+        }
+
+        /* Append the paths, each painted with the given operator. */
+        private void appendPaths(List<Path2D.Double> paths, String operator) throws IOException {
+            StringBuilder text = text();
+            double[] coords = new double[6];
+            int segment;
+            for (Path2D.Double path : paths) {
+                for (PathIterator i = path.getPathIterator(null); !i.isDone(); i.next()) {
+                    segment = i.currentSegment(coords);
+                    switch (segment) {
+                        case PathIterator.SEG_MOVETO:
+                        case PathIterator.SEG_LINETO:
+                            appendNumber(text, coords[0]);
+                            text.append(' ');
+                            appendNumber(text, coords[1]);
+                            text.append((segment == PathIterator.SEG_MOVETO) ? " m\n" : " l\n");
+                            break;
+                        case PathIterator.SEG_CLOSE:
+                            text.append("h\n");
+                            break;
+                        default:
+                            break;
+                    }
+                    flushIfFull();
+                }
+                text.append(operator).append('\n');
+            }
+        }
+    }
+}